@@ -1,3 +1,4 @@
+import io.github.tetherless_world.jena_elasticsearch.ElasticsearchGraph;
 import io.github.tetherless_world.jena_elasticsearch.ElasticsearchGraphMaker;
 import io.github.tetherless_world.jena_elasticsearch.ElasticsearchGraphMakerConfiguration;
 import org.apache.http.HttpHost;
@@ -35,6 +36,8 @@ public class SPARQLServer {
                         ElasticsearchGraphMakerConfiguration.SyncType.ASYNCHRONOUS,
                         new HttpHost("elasticsearch", 9200, "http")
                 );
+                // buffer triples into bulk requests while loading; they are flushed once the file is read
+                config.bulkIndexing = true;
                 GraphMaker graphMaker = new ElasticsearchGraphMaker(config);
                 graphMaker.removeGraph("_all");
 
@@ -64,6 +67,9 @@ public class SPARQLServer {
                 m.read(new File(args[1]).toURI().toString());
                 ds.commit();
                 ds.end();
+                if (m.getGraph() instanceof ElasticsearchGraph) {
+                    ((ElasticsearchGraph) m.getGraph()).flush();
+                }
                 long endTime = System.currentTimeMillis();
 
                 logger.info("Loaded file {} into dataset in {}ms", args[1], endTime - startTime);
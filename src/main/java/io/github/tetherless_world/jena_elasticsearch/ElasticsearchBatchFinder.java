@@ -0,0 +1,219 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Looks up the triples matching many triple patterns of a graph with a single multi-search
+ * request, instead of one search per pattern. Patterns that differ only in their subject (or
+ * only in their object), as produced by binding a join variable, are looked up with a single
+ * terms query, and its hits are handed back to the patterns by the value of that field.
+ */
+class ElasticsearchBatchFinder {
+    private final static Logger logger = LoggerFactory.getLogger(ElasticsearchBatchFinder.class);
+    private final ElasticsearchGraph graph;
+    private final QueryBuilder constraint;
+
+    /**
+     * Constructor for ElasticsearchBatchFinder
+     *
+     * @param g          the graph to look up patterns in
+     * @param constraint a query that all returned triples must also match, or null
+     */
+    ElasticsearchBatchFinder(ElasticsearchGraph g, QueryBuilder constraint) {
+        this.graph = g;
+        this.constraint = constraint;
+    }
+
+    /**
+     * Finds the triples matching each of the given patterns. A pattern whose matches do not fit into
+     * one page is left out of the result, and its matches must be paged through with ElasticsearchGraph.find.
+     *
+     * @param patterns the patterns to look up, with Node.ANY in place of unbound positions
+     * @return the complete list of matches of each pattern that has at most one page of matches
+     */
+    Map<Triple, List<Triple>> find(Collection<Triple> patterns) {
+        Map<Triple, List<Triple>> results = new HashMap<>();
+        if (patterns.isEmpty()) {
+            return results;
+        }
+        this.graph.flushBeforeRead();
+
+        // patterns of terms queries with more than a page of hits are retried one by one
+        List<Triple> retry = this.search(this.planLookups(patterns), results);
+        if (!retry.isEmpty()) {
+            List<Lookup> singleLookups = new ArrayList<>(retry.size());
+            for (Triple pattern : retry) {
+                singleLookups.add(this.singleLookup(pattern));
+            }
+            this.search(singleLookups, results);
+        }
+
+        logger.debug("Found {} of {} patterns with batched lookups", results.size(), patterns.size());
+        return results;
+    }
+
+    /**
+     * Groups the patterns into lookups: first by everything but the subject, then by everything but the object
+     */
+    private List<Lookup> planLookups(Collection<Triple> patterns) {
+        List<Lookup> lookups = new ArrayList<>();
+
+        Map<Triple, List<Triple>> bySubject = new LinkedHashMap<>();
+        List<Triple> ungrouped = new ArrayList<>();
+        for (Triple pattern : patterns) {
+            if (pattern.getSubject().isConcrete()) {
+                Triple shared = Triple.create(Node.ANY, pattern.getPredicate(), pattern.getObject());
+                bySubject.computeIfAbsent(shared, k -> new ArrayList<>()).add(pattern);
+            } else {
+                ungrouped.add(pattern);
+            }
+        }
+        for (Map.Entry<Triple, List<Triple>> group : bySubject.entrySet()) {
+            if (group.getValue().size() > 1) {
+                lookups.add(this.termsLookup(group.getKey(), "subject", group.getValue()));
+            } else {
+                ungrouped.addAll(group.getValue());
+            }
+        }
+
+        Map<Triple, List<Triple>> byObject = new LinkedHashMap<>();
+        for (Triple pattern : ungrouped) {
+            if (pattern.getObject().isConcrete()) {
+                Triple shared = Triple.create(pattern.getSubject(), pattern.getPredicate(), Node.ANY);
+                byObject.computeIfAbsent(shared, k -> new ArrayList<>()).add(pattern);
+            } else {
+                lookups.add(this.singleLookup(pattern));
+            }
+        }
+        for (Map.Entry<Triple, List<Triple>> group : byObject.entrySet()) {
+            if (group.getValue().size() > 1) {
+                lookups.add(this.termsLookup(group.getKey(), "object", group.getValue()));
+            } else {
+                lookups.add(this.singleLookup(group.getValue().get(0)));
+            }
+        }
+        return lookups;
+    }
+
+    private Lookup singleLookup(Triple pattern) {
+        List<Triple> patterns = new ArrayList<>(1);
+        patterns.add(pattern);
+        return new Lookup(patterns, null, ElasticsearchGraph.constrain(this.graph.constructTripleMatchingQuery(pattern), this.constraint),
+                this.graph.getRouting(pattern.getSubject()));
+    }
+
+    private Lookup termsLookup(Triple shared, String field, List<Triple> patterns) {
+        List<Node> nodes = new ArrayList<>(patterns.size());
+        for (Triple pattern : patterns) {
+            nodes.add("subject".equals(field) ? pattern.getSubject() : pattern.getObject());
+        }
+        String routing = "subject".equals(field) ? this.graph.getRouting(nodes) : this.graph.getRouting(shared.getSubject());
+        return new Lookup(patterns, field, ElasticsearchGraph.constrain(this.graph.constructTermsMatchingQuery(shared, field, nodes), this.constraint),
+                routing);
+    }
+
+    /**
+     * Sends the lookups in one multi-search request and adds the matches of complete lookups to the results
+     *
+     * @return the patterns of terms lookups that had more than a page of hits
+     */
+    private List<Triple> search(List<Lookup> lookups, Map<Triple, List<Triple>> results) {
+        final int pageSize = this.graph.getConfiguration().searchPageSize;
+        List<Triple> incomplete = new ArrayList<>();
+
+        MultiSearchRequest request = new MultiSearchRequest();
+        for (Lookup lookup : lookups) {
+            SearchRequest searchRequest = new SearchRequest(this.graph.getIndexName());
+            searchRequest.routing(lookup.routing);
+            searchRequest.source(ElasticsearchTripleIterator.sortedSearchSource(lookup.query, pageSize));
+            request.add(searchRequest);
+        }
+
+        try {
+            MultiSearchResponse.Item[] items = this.graph.getClient().msearch(request, this.graph.getRequestOptions()).getResponses();
+            for (int i = 0; i < items.length; ++i) {
+                Lookup lookup = lookups.get(i);
+                if (items[i].isFailure()) {
+                    logger.error("Search for patterns {} failed", lookup.patterns, items[i].getFailure());
+                    continue;
+                }
+                SearchHit[] hits = items[i].getResponse().getHits().getHits();
+                if (hits.length < pageSize) {
+                    lookup.collect(this.graph, hits, results);
+                } else if (lookup.field != null) {
+                    incomplete.addAll(lookup.patterns);
+                }
+            }
+        } catch (IOException e) {
+            // the patterns are looked up one at a time instead
+            logger.error("Multi-search for {} lookups failed", lookups.size(), e);
+        }
+        return incomplete;
+    }
+
+    /**
+     * A search answering one pattern, or several patterns that differ only in field
+     */
+    private static class Lookup {
+        private final List<Triple> patterns;
+        private final String field;
+        private final QueryBuilder query;
+        private final String routing;
+
+        Lookup(List<Triple> patterns, String field, QueryBuilder query, String routing) {
+            this.patterns = patterns;
+            this.field = field;
+            this.query = query;
+            this.routing = routing;
+        }
+
+        /**
+         * Hands the hits of this lookup to the patterns they match
+         */
+        void collect(ElasticsearchGraph graph, SearchHit[] hits, Map<Triple, List<Triple>> results) {
+            graph.prefetchNodes(hits);
+            if (this.field == null) {
+                List<Triple> matches = new ArrayList<>(hits.length);
+                for (SearchHit hit : hits) {
+                    matches.add(graph.createTriple(hit));
+                }
+                results.put(this.patterns.get(0), matches);
+                return;
+            }
+
+            // demultiplex by the stored value of the varying field
+            Map<String, List<Triple>> matchesByValue = new HashMap<>();
+            for (Triple pattern : this.patterns) {
+                Node n = "subject".equals(this.field) ? pattern.getSubject() : pattern.getObject();
+                List<Triple> matches = new ArrayList<>();
+                matchesByValue.put(graph.encodeLookup(n), matches);
+                results.put(pattern, matches);
+            }
+            int fieldIndex = ElasticsearchGraph.getFieldIndex(this.field);
+            for (SearchHit hit : hits) {
+                String[] values = graph.getStoredValues(hit);
+                List<Triple> matches = matchesByValue.get(values[fieldIndex]);
+                if (matches != null) {
+                    matches.add(graph.createTriple(values));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.settings.Settings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * A bulk load of an ElasticsearchGraph. While the session is open, the graph's index is not
+ * refreshed and has no replicas, so all indexing work goes into the primary shards. Closing
+ * the session flushes buffered writes, restores the original refresh interval and number of
+ * replicas, refreshes the index, and optionally force-merges it into a few segments.
+ * <p>
+ * Sessions are created with ElasticsearchGraph.beginBulkLoad and are meant to be used in a
+ * try-with-resources statement around the load.
+ */
+public class ElasticsearchBulkLoadSession implements AutoCloseable {
+    private final static Logger logger = LoggerFactory.getLogger(ElasticsearchBulkLoadSession.class);
+    private final static String refreshIntervalSetting = "index.refresh_interval";
+    private final static String replicasSetting = "index.number_of_replicas";
+    private final ElasticsearchGraph graph;
+    private final RestHighLevelClient client;
+    private final String name;
+    private final int forceMergeSegments;
+    private final String originalRefreshInterval;
+    private final String originalReplicas;
+    private boolean closed = false;
+
+    /**
+     * Constructor for ElasticsearchBulkLoadSession; disables refreshes and replicas of the graph's index
+     *
+     * @param g                  the graph being loaded
+     * @param forceMergeSegments the number of segments to force-merge the index into when the session
+     *                           is closed, or 0 to skip the force merge
+     * @throws IOException if the index settings cannot be read or updated
+     */
+    ElasticsearchBulkLoadSession(ElasticsearchGraph g, int forceMergeSegments) throws IOException {
+        this.graph = g;
+        this.client = g.getClient();
+        this.name = g.getIndexName();
+        this.forceMergeSegments = forceMergeSegments;
+
+        // remember the explicitly set values; settings left at their defaults are reset to null later
+        GetSettingsRequest getSettingsRequest = new GetSettingsRequest().indices(this.name)
+                .names(refreshIntervalSetting, replicasSetting);
+        GetSettingsResponse getSettingsResponse = this.client.indices().getSettings(getSettingsRequest, RequestOptions.DEFAULT);
+        this.originalRefreshInterval = getSettingsResponse.getSetting(this.name, refreshIntervalSetting);
+        this.originalReplicas = getSettingsResponse.getSetting(this.name, replicasSetting);
+
+        this.updateSettings(Settings.builder()
+                .put(refreshIntervalSetting, "-1")
+                .put(replicasSetting, 0)
+                .build());
+        logger.info("Started bulk load of graph '{}'", this.name);
+    }
+
+    /**
+     * Ends the bulk load: flushes buffered writes, restores the index settings, refreshes, and force-merges
+     *
+     * @throws IOException if the index settings cannot be restored or the index cannot be refreshed
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        try {
+            this.graph.flush();
+        } finally {
+            // the index must not be left without refreshes and replicas, even if the flush failed; a session whose
+            // settings could not be restored can be closed again
+            this.restoreSettings();
+            this.closed = true;
+        }
+
+        this.client.indices().refresh(new RefreshRequest(this.name), RequestOptions.DEFAULT);
+        this.graph.invalidateCaches();
+
+        if (this.forceMergeSegments > 0) {
+            ForceMergeRequest forceMergeRequest = new ForceMergeRequest(this.name);
+            forceMergeRequest.maxNumSegments(this.forceMergeSegments);
+            try {
+                this.client.indices().forcemerge(forceMergeRequest, RequestOptions.DEFAULT);
+            } catch (IOException e) {
+                // the merge keeps running on the server if the request times out
+                logger.warn("Force merge of graph '{}' did not complete before the request ended", this.name, e);
+            }
+        }
+        logger.info("Finished bulk load of graph '{}'", this.name);
+    }
+
+    private void restoreSettings() throws IOException {
+        Settings.Builder settings = Settings.builder();
+        if (this.originalRefreshInterval == null) {
+            settings.putNull(refreshIntervalSetting);
+        } else {
+            settings.put(refreshIntervalSetting, this.originalRefreshInterval);
+        }
+        if (this.originalReplicas == null) {
+            settings.putNull(replicasSetting);
+        } else {
+            settings.put(replicasSetting, this.originalReplicas);
+        }
+        this.updateSettings(settings.build());
+    }
+
+    private void updateSettings(Settings settings) throws IOException {
+        UpdateSettingsRequest request = new UpdateSettingsRequest(this.name);
+        request.settings(settings);
+        this.client.indices().putSettings(request, RequestOptions.DEFAULT);
+    }
+}
@@ -0,0 +1,171 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * Buffers write requests for a graph and sends them to Elasticsearch in bulk requests.
+ * Requests are batched by count, size in bytes and time, as configured in an
+ * ElasticsearchGraphMakerConfiguration. Failed items are logged individually and counted, as are
+ * successful items, and the net number of documents created and deleted by each bulk request is reported to a callback.
+ */
+class ElasticsearchBulkWriter implements BulkProcessor.Listener {
+    private final Logger logger = LoggerFactory.getLogger(ElasticsearchBulkWriter.class);
+    private final String name;
+    private final BulkProcessor processor;
+    private final boolean ordered;
+    private final Object inFlightLock = new Object();
+    private final AtomicLong failedItems = new AtomicLong();
+    private final AtomicLong succeededItems = new AtomicLong();
+    private final LongConsumer documentCountChanged;
+    private int inFlight = 0;
+
+    /**
+     * Constructor for ElasticsearchBulkWriter
+     *
+     * @param client the client used to send the bulk requests
+     * @param name   the name of the index written to (used for logging)
+     * @param config the configuration defining the batch sizes, flush interval and concurrency
+     * @param documentCountChanged called with the net number of documents added by each bulk request
+     */
+    ElasticsearchBulkWriter(RestHighLevelClient client, String name, ElasticsearchGraphMakerConfiguration config,
+                            LongConsumer documentCountChanged) {
+        this.name = name;
+        this.documentCountChanged = documentCountChanged;
+        RequestOptions options = ElasticsearchGraph.createRequestOptions(config);
+        BulkProcessor.Builder builder = BulkProcessor.builder(
+                (request, listener) -> client.bulkAsync(request, options, listener), this);
+        builder.setBulkActions(config.bulkActions);
+        builder.setBulkSize(new ByteSizeValue(config.bulkSizeInBytes));
+        builder.setConcurrentRequests(config.bulkConcurrentRequests);
+        if (config.bulkFlushIntervalMillis > 0) {
+            builder.setFlushInterval(TimeValue.timeValueMillis(config.bulkFlushIntervalMillis));
+        }
+        this.processor = builder.build();
+        this.ordered = config.bulkConcurrentRequests <= 1;
+    }
+
+    /**
+     * Returns true if bulk requests are executed one at a time, so that queued requests are applied in order
+     *
+     * @return true if queued requests cannot overtake each other
+     */
+    boolean isOrdered() {
+        return this.ordered;
+    }
+
+    /**
+     * Queue a write request. The request is sent once the current batch is full or the flush interval elapses.
+     *
+     * @param request the index or delete request to queue
+     */
+    void add(DocWriteRequest<?> request) {
+        this.processor.add(request);
+    }
+
+    /**
+     * Send all queued requests and block until every outstanding bulk request has completed
+     */
+    void flush() {
+        this.processor.flush();
+        synchronized (this.inFlightLock) {
+            while (this.inFlight > 0) {
+                try {
+                    this.inFlightLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    this.logger.error("Interrupted while waiting for bulk requests to '{}' to complete", this.name);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush all queued requests and release the resources of the underlying BulkProcessor
+     */
+    void close() {
+        this.flush();
+        try {
+            this.processor.awaitClose(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.logger.error("Interrupted while closing bulk writer for '{}'", this.name);
+        }
+    }
+
+    /**
+     * Returns the number of individual write requests that Elasticsearch has rejected so far
+     *
+     * @return the number of failed items
+     */
+    long getFailedItemCount() {
+        return this.failedItems.get();
+    }
+
+    /**
+     * Returns the number of individual write requests that Elasticsearch has applied so far
+     *
+     * @return the number of successful items
+     */
+    long getSucceededItemCount() {
+        return this.succeededItems.get();
+    }
+
+    @Override
+    public void beforeBulk(long executionId, BulkRequest request) {
+        synchronized (this.inFlightLock) {
+            ++this.inFlight;
+        }
+        this.logger.debug("Sending bulk request {} with {} actions to '{}'", executionId, request.numberOfActions(), this.name);
+    }
+
+    @Override
+    public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+        long documentCountChange = 0;
+        for (BulkItemResponse item : response.getItems()) {
+            if (item.isFailed()) {
+                this.failedItems.incrementAndGet();
+                this.logger.error("Bulk {} of document '{}' in '{}' failed: {}",
+                        item.getOpType(), item.getId(), this.name, item.getFailureMessage());
+                continue;
+            }
+            this.succeededItems.incrementAndGet();
+            if (item.getResponse().getResult() == DocWriteResponse.Result.CREATED) {
+                ++documentCountChange;
+            } else if (item.getResponse().getResult() == DocWriteResponse.Result.DELETED) {
+                --documentCountChange;
+            }
+        }
+        this.documentCountChanged.accept(documentCountChange);
+        this.completed();
+    }
+
+    @Override
+    public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+        this.failedItems.addAndGet(request.numberOfActions());
+        this.logger.error("Bulk request {} with {} actions to '{}' failed", executionId, request.numberOfActions(), this.name, failure);
+        this.completed();
+    }
+
+    private void completed() {
+        synchronized (this.inFlightLock) {
+            --this.inFlight;
+            this.inFlightLock.notifyAll();
+        }
+    }
+}
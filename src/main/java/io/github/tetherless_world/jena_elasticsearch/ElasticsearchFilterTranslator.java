@@ -0,0 +1,217 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.expr.E_Equals;
+import org.apache.jena.sparql.expr.E_GreaterThan;
+import org.apache.jena.sparql.expr.E_GreaterThanOrEqual;
+import org.apache.jena.sparql.expr.E_LessThan;
+import org.apache.jena.sparql.expr.E_LessThanOrEqual;
+import org.apache.jena.sparql.expr.E_LogicalAnd;
+import org.apache.jena.sparql.expr.E_Regex;
+import org.apache.jena.sparql.expr.E_StrContains;
+import org.apache.jena.sparql.expr.E_StrEndsWith;
+import org.apache.jena.sparql.expr.E_StrStartsWith;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprFunction2;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.PrefixQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.WildcardQueryBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Translates SPARQL FILTER expressions into Elasticsearch queries on the object of the triples that
+ * bind a variable. The queries are conservative: they match at least every triple whose object could
+ * pass the filter, so the filter itself must still be evaluated on the results. Expressions that
+ * cannot be translated are ignored.
+ * <p>
+ * Comparisons of a variable with a numeric constant become range queries on the double value of
+ * the object, and comparisons with an xsd:dateTime or xsd:date constant become range queries on
+ * its date value, widened by the largest timezone offset since values without a timezone are
+ * stored as UTC.
+ * <p>
+ * CONTAINS, STRSTARTS, and STRENDS of a variable and a constant string become wildcard or prefix
+ * queries on the lexical form of the object. So does regex with a pattern of literal characters,
+ * optionally anchored with ^. With the "i" flag, the query is made on the lowercased lexical
+ * form instead; patterns must then be ASCII, since Java regular expressions only ignore ASCII case.
+ */
+final class ElasticsearchFilterTranslator {
+    private final static String REGEX_METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    private ElasticsearchFilterTranslator() {
+    }
+
+    /**
+     * Returns the queries that the object of a triple must match for the variable it binds to pass the filter
+     *
+     * @param exprs the conjunction of filter expressions
+     * @return a query per constrained variable; empty if no expression could be translated
+     */
+    static Map<Var, QueryBuilder> objectConstraints(ExprList exprs) {
+        Map<Var, BoolQueryBuilder> constraints = new HashMap<>();
+        for (Expr expr : exprs) {
+            translate(expr, constraints);
+        }
+        return new HashMap<>(constraints);
+    }
+
+    private static void translate(Expr expr, Map<Var, BoolQueryBuilder> constraints) {
+        if (expr instanceof E_LogicalAnd) {
+            translate(((E_LogicalAnd) expr).getArg1(), constraints);
+            translate(((E_LogicalAnd) expr).getArg2(), constraints);
+        } else if (expr instanceof E_Equals || expr instanceof E_GreaterThan || expr instanceof E_GreaterThanOrEqual
+                || expr instanceof E_LessThan || expr instanceof E_LessThanOrEqual) {
+            translateComparison((ExprFunction2) expr, constraints);
+        } else if (expr instanceof E_StrContains || expr instanceof E_StrStartsWith || expr instanceof E_StrEndsWith) {
+            translateStringFunction((ExprFunction2) expr, constraints);
+        } else if (expr instanceof E_Regex) {
+            translateRegex((E_Regex) expr, constraints);
+        }
+    }
+
+    private static void translateStringFunction(ExprFunction2 expr, Map<Var, BoolQueryBuilder> constraints) {
+        String value = stringConstant(expr.getArg2());
+        if (!expr.getArg1().isVariable() || value == null) {
+            return;
+        }
+        boolean anchoredStart = expr instanceof E_StrStartsWith;
+        boolean anchoredEnd = expr instanceof E_StrEndsWith;
+        addConstraint(expr.getArg1().asVar(),
+                lexicalQuery(ElasticsearchLiteralFields.LEXICAL, value, anchoredStart, anchoredEnd), constraints);
+    }
+
+    private static void translateRegex(E_Regex expr, Map<Var, BoolQueryBuilder> constraints) {
+        Expr target = expr.getArg(1);
+        String pattern = stringConstant(expr.getArg(2));
+        Expr flagsExpr = expr.getArg(3);
+        String flags = flagsExpr == null ? "" : stringConstant(flagsExpr);
+        if (!target.isVariable() || pattern == null || flags == null) {
+            return;
+        }
+
+        boolean caseInsensitive;
+        if (flags.isEmpty()) {
+            caseInsensitive = false;
+        } else if (flags.equals("i")) {
+            caseInsensitive = true;
+        } else {
+            return;
+        }
+
+        boolean anchoredStart = pattern.startsWith("^");
+        boolean anchoredEnd = pattern.endsWith("$") && pattern.length() > (anchoredStart ? 1 : 0);
+        String value = pattern.substring(anchoredStart ? 1 : 0, pattern.length() - (anchoredEnd ? 1 : 0));
+        // $ also matches before a final line terminator, so the end is not anchored in the query
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (REGEX_METACHARACTERS.indexOf(c) >= 0 || (caseInsensitive && c > 127)) {
+                return;
+            }
+        }
+
+        if (caseInsensitive) {
+            addConstraint(target.asVar(), lexicalQuery(ElasticsearchLiteralFields.LEXICAL_LOWERCASE,
+                    ElasticsearchLiteralFields.lowercase(value), anchoredStart, false), constraints);
+        } else {
+            addConstraint(target.asVar(),
+                    lexicalQuery(ElasticsearchLiteralFields.LEXICAL, value, anchoredStart, false), constraints);
+        }
+    }
+
+    /**
+     * Returns the lexical form of a constant string or language-tagged string, or null for any other expression
+     */
+    private static String stringConstant(Expr expr) {
+        if (!expr.isConstant()) {
+            return null;
+        }
+        NodeValue nv = expr.getConstant();
+        if (!nv.isString() && !nv.isLangString()) {
+            return null;
+        }
+        return nv.asNode().getLiteralLexicalForm();
+    }
+
+    /**
+     * Returns a query for lexical forms that contain, start with, end with, or equal a value
+     */
+    private static QueryBuilder lexicalQuery(String field, String value, boolean anchoredStart, boolean anchoredEnd) {
+        if (anchoredStart && anchoredEnd) {
+            return new TermQueryBuilder(field, value);
+        }
+        if (anchoredStart) {
+            return new PrefixQueryBuilder(field, value);
+        }
+        StringBuilder wildcard = new StringBuilder(value.length() + 2);
+        wildcard.append('*');
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '*' || c == '?' || c == '\\') {
+                wildcard.append('\\');
+            }
+            wildcard.append(c);
+        }
+        if (!anchoredEnd) {
+            wildcard.append('*');
+        }
+        return new WildcardQueryBuilder(field, wildcard.toString());
+    }
+
+    private static void translateComparison(ExprFunction2 expr, Map<Var, BoolQueryBuilder> constraints) {
+        Expr left = expr.getArg1();
+        Expr right = expr.getArg2();
+        boolean lower = expr instanceof E_GreaterThan || expr instanceof E_GreaterThanOrEqual;
+        boolean upper = expr instanceof E_LessThan || expr instanceof E_LessThanOrEqual;
+        if (left.isConstant() && right.isVariable()) {
+            // "5 < ?x" constrains ?x like "?x > 5"
+            Expr swap = left;
+            left = right;
+            right = swap;
+            boolean swapBound = lower;
+            lower = upper;
+            upper = swapBound;
+        } else if (!(left.isVariable() && right.isConstant())) {
+            return;
+        }
+        boolean equals = !lower && !upper;
+
+        NodeValue constant = right.getConstant();
+        RangeQueryBuilder range;
+        Double d = ElasticsearchLiteralFields.toDouble(constant);
+        Long millis = ElasticsearchLiteralFields.toEpochMillis(constant);
+        if (d != null) {
+            // bounds are inclusive: doubles are a rounding of the exact values, which may be equal at the bound
+            range = new RangeQueryBuilder(ElasticsearchLiteralFields.DOUBLE);
+            if (lower || equals) {
+                range.gte(d);
+            }
+            if (upper || equals) {
+                range.lte(d);
+            }
+        } else if (millis != null) {
+            range = new RangeQueryBuilder(ElasticsearchLiteralFields.DATE);
+            if (lower || equals) {
+                range.gte(millis - ElasticsearchLiteralFields.MAX_TIMEZONE_OFFSET_MILLIS);
+            }
+            if (upper || equals) {
+                range.lte(millis + ElasticsearchLiteralFields.MAX_TIMEZONE_OFFSET_MILLIS);
+            }
+        } else {
+            return;
+        }
+        addConstraint(left.asVar(), range, constraints);
+    }
+
+    /**
+     * Adds a query that the object bound to a variable must match
+     */
+    static void addConstraint(Var v, QueryBuilder query, Map<Var, BoolQueryBuilder> constraints) {
+        constraints.computeIfAbsent(v, k -> new BoolQueryBuilder()).filter(query);
+    }
+}
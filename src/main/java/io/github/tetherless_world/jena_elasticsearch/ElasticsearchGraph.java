@@ -1,36 +1,60 @@
 package io.github.tetherless_world.jena_elasticsearch;
 
+import org.apache.jena.datatypes.RDFDatatype;
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.graph.impl.GraphBase;
 import org.apache.jena.util.iterator.ExtendedIterator;
-import org.apache.jena.util.iterator.WrappedIterator;
-import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
-import org.elasticsearch.action.admin.indices.refresh.RefreshResponse;
+import org.apache.jena.util.iterator.NiceIterator;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.action.search.SearchRequest;
-import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.core.CountRequest;
 import org.elasticsearch.client.core.CountResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
 import org.elasticsearch.index.reindex.DeleteByQueryRequest;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A Graph backed by an Elasticsearch instance. An ElasticsearchGraph is created
@@ -40,20 +64,296 @@ public class ElasticsearchGraph extends GraphBase {
     private final Logger logger = LoggerFactory.getLogger(ElasticsearchGraph.class);
     private final RestHighLevelClient client;
     private final String name;
+    private final ElasticsearchGraphMakerConfiguration config;
     private final ElasticsearchGraphMakerConfiguration.SyncType syncType;
+    private final ElasticsearchBulkWriter bulkWriter;
+    private final ElasticsearchRefreshCoordinator refreshCoordinator;
+    private final XContentType contentType;
+    private final RequestOptions requestOptions;
+    private final int searchPageSize;
+    private final int searchPrefetchDepth;
+    private final long searchPrefetchMaxBytes;
+    // the number of writes queued for bulk requests, and how many of them were read-visible after the last flush
+    private final AtomicLong bulkWritesQueued = new AtomicLong();
+    private final AtomicLong bulkWritesFlushed = new AtomicLong();
+    private final AtomicLong size = new AtomicLong();
+    private final long sizeReconcileIntervalMillis;
+    private final boolean subjectRouting;
+    private final ElasticsearchPatternCache patternCache;
+    private final ElasticsearchSessionDelta sessionDelta;
+    private final ElasticsearchNodeDictionary dictionary;
+    private final ElasticsearchNodeCache nodeCache;
+    private final ElasticsearchGraphStatistics statistics;
+    private final int sessionMaxPendingWrites;
+    private volatile long sizeReconciledAt = -1;
 
     public ElasticsearchGraph(RestHighLevelClient aClient, String aName, ElasticsearchGraphMakerConfiguration.SyncType st) {
+        this(aClient, aName, new ElasticsearchGraphMakerConfiguration(st));
+    }
+
+    public ElasticsearchGraph(RestHighLevelClient aClient, String aName, ElasticsearchGraphMakerConfiguration config) {
+        this(aClient, aName, config, new ElasticsearchRefreshCoordinator(aClient, aName, config.refreshCoalesceMillis));
+    }
+
+    /**
+     * Constructor for ElasticsearchGraph
+     *
+     * @param aClient            the client used to access the index
+     * @param aName              the name of the index
+     * @param config             the configuration of the graph
+     * @param refreshCoordinator the coordinator refreshing the index for the writes of all graphs over it
+     */
+    ElasticsearchGraph(RestHighLevelClient aClient, String aName, ElasticsearchGraphMakerConfiguration config,
+                       ElasticsearchRefreshCoordinator refreshCoordinator) {
         this.client = aClient;
+        this.refreshCoordinator = refreshCoordinator;
+        if (config.transportContentType != XContentType.JSON && config.transportContentType != XContentType.SMILE) {
+            // bulk requests can only be sent as JSON or SMILE
+            throw new IllegalArgumentException("Unsupported transport content type " + config.transportContentType);
+        }
+        this.contentType = config.transportContentType;
+        this.requestOptions = createRequestOptions(config);
         this.name = aName;
-        this.syncType = st;
+        this.config = config;
+        this.syncType = config.syncType;
+        this.searchPageSize = config.searchPageSize;
+        this.searchPrefetchDepth = config.searchPrefetchDepth;
+        this.searchPrefetchMaxBytes = config.searchPrefetchMaxBytes;
+        this.sizeReconcileIntervalMillis = config.sizeReconcileIntervalMillis;
+        this.subjectRouting = config.subjectRouting;
+        this.bulkWriter = config.bulkIndexing ? this.createBulkWriter(config) : null;
+        this.sessionDelta = this.syncType.equals(ElasticsearchGraphMakerConfiguration.SyncType.SESSION)
+                ? new ElasticsearchSessionDelta() : null;
+        this.sessionMaxPendingWrites = config.sessionMaxPendingWrites;
+        this.dictionary = config.dictionaryEncoding
+                ? new ElasticsearchNodeDictionary(aClient, this.requestOptions, aName, config.dictionaryCacheSize) : null;
+        // the node table already caches the nodes it decodes
+        this.nodeCache = this.dictionary == null && config.nodeCacheMaxBytes > 0
+                ? new ElasticsearchNodeCache(config.nodeCacheMaxBytes) : null;
+        this.statistics = config.statisticsTtlMillis >= 0
+                ? new ElasticsearchGraphStatistics(this, config.statisticsTtlMillis, config.statisticsCacheSize) : null;
+        if (config.patternCacheMaxBytes > 0) {
+            // writes to a synchronous graph are visible once they return, and a session graph only fills the cache
+            // once its writes have been refreshed; others wait for the bulk flush and a refresh
+            long quietMillis = !this.syncType.equals(ElasticsearchGraphMakerConfiguration.SyncType.ASYNCHRONOUS) ? -1
+                    : config.bulkIndexing ? config.bulkFlushIntervalMillis : 0;
+            this.patternCache = new ElasticsearchPatternCache(config.patternCacheMaxBytes, config.searchPageSize, quietMillis);
+        } else {
+            this.patternCache = null;
+        }
+    }
+
+    RestHighLevelClient getClient() {
+        return this.client;
+    }
+
+    /**
+     * Returns the options of the requests that read and write the triples of a graph, which ask for responses in
+     * the configured transport content type
+     *
+     * @param config the configuration of the graph
+     * @return the request options
+     */
+    static RequestOptions createRequestOptions(ElasticsearchGraphMakerConfiguration config) {
+        if (config.transportContentType == XContentType.JSON) {
+            return RequestOptions.DEFAULT;
+        }
+        return RequestOptions.DEFAULT.toBuilder()
+                .addHeader("Accept", config.transportContentType.mediaTypeWithoutParameters())
+                .build();
+    }
+
+    RequestOptions getRequestOptions() {
+        return this.requestOptions;
     }
 
-    private static String getNodeContent(Node n) {
+    String getIndexName() {
+        return this.name;
+    }
+
+    ElasticsearchGraphMakerConfiguration getConfiguration() {
+        return this.config;
+    }
+
+    /**
+     * Returns true if added triples are buffered and sent to Elasticsearch in bulk requests
+     *
+     * @return true if bulk indexing is enabled for this graph
+     */
+    public boolean isBulkIndexing() {
+        return this.bulkWriter != null;
+    }
+
+    /**
+     * Sends all buffered writes to Elasticsearch and waits for them to complete. If this is a
+     * synchronous or session graph, the index is also refreshed so that the writes are read-visible,
+     * and a session graph drops the writes it recorded. Without bulk indexing, only a session graph
+     * with recorded writes has anything to do.
+     */
+    public void flush() {
+        if (this.bulkWriter == null) {
+            if (this.hasSessionWrites()) {
+                this.refresh(this.sessionDelta.getSequence());
+            }
+            return;
+        }
+        long queued = this.bulkWritesQueued.get();
+        long sessionSequence = this.sessionDelta != null ? this.sessionDelta.getSequence() : 0;
+        this.bulkWriter.flush();
+
+        if (!this.syncType.equals(ElasticsearchGraphMakerConfiguration.SyncType.ASYNCHRONOUS)) {
+            this.refresh(sessionSequence);
+        }
+        // until now, reads must neither skip the flush nor cache their results
+        this.bulkWritesFlushed.accumulateAndGet(queued, Math::max);
+    }
+
+    /**
+     * Returns true if writes have been queued for bulk requests since the last flush, or the flush that sends them
+     * has not completed yet
+     *
+     * @return true if searches may not see every write queued so far
+     */
+    boolean hasPendingBulkWrites() {
+        return this.bulkWritesQueued.get() > this.bulkWritesFlushed.get();
+    }
+
+    /**
+     * Waits for a refresh of the index, shared with concurrent writers, and drops the session writes up to a
+     * sequence number, which are then read-visible
+     *
+     * @param sessionSequence the sequence number of the last session write sent before the refresh
+     */
+    private void refresh(long sessionSequence) {
+        if (this.refreshCoordinator.awaitRefresh() && this.sessionDelta != null) {
+            this.sessionDelta.prune(sessionSequence);
+        }
+    }
+
+    /**
+     * Records a write to a session graph, and makes the recorded writes read-visible with a refresh once there
+     * are more than sessionMaxPendingWrites of them
+     *
+     * @param t     the written triple
+     * @param added true if t was added, false if it was deleted
+     */
+    private void recordSessionWrite(Triple t, boolean added) {
+        if (this.sessionDelta == null) {
+            return;
+        }
+        if (added) {
+            this.sessionDelta.add(t);
+        } else {
+            this.sessionDelta.delete(t);
+        }
+        if (this.sessionDelta.size() > this.sessionMaxPendingWrites) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Returns true if this is a session graph with writes that searches may not see yet. Reads that do not go
+     * through find or contains must then not be answered from Elasticsearch alone.
+     *
+     * @return true if the results of searches must be merged with withSessionWrites
+     */
+    boolean hasSessionWrites() {
+        return this.sessionDelta != null && !this.sessionDelta.isEmpty();
+    }
+
+    /**
+     * Merges the results of a search for a pattern with the writes to a session graph that the search may not
+     * see: written triples are dropped from the results, and those that were added are returned after them
+     *
+     * @param pattern the pattern, with Node.ANY in place of unbound positions
+     * @param results the triples matching the pattern in Elasticsearch
+     * @return the merged results
+     */
+    ExtendedIterator<Triple> withSessionWrites(Triple pattern, ExtendedIterator<Triple> results) {
+        if (!this.hasSessionWrites()) {
+            return results;
+        }
+        Map<Triple, Boolean> writes = this.sessionDelta.matching(pattern);
+        if (writes.isEmpty()) {
+            return results;
+        }
+        List<Triple> added = new ArrayList<>();
+        for (Map.Entry<Triple, Boolean> write : writes.entrySet()) {
+            if (write.getValue()) {
+                added.add(write.getKey());
+            }
+        }
+        return results.filterDrop(writes::containsKey).andThen(new LocalTripleIterator(added));
+    }
+
+    /**
+     * Flushes buffered writes before a read if this is a synchronous graph, so that reads see all prior writes
+     */
+    void flushBeforeRead() {
+        if (this.hasPendingBulkWrites() && this.syncType.equals(ElasticsearchGraphMakerConfiguration.SyncType.SYNCHRONOUS)) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Starts a bulk load of this graph: refreshes and replicas of the index are disabled until the returned
+     * session is closed. See ElasticsearchBulkLoadSession.
+     *
+     * @param forceMergeSegments the number of segments to force-merge the index into when the load ends,
+     *                           or 0 to skip the force merge
+     * @return the bulk load session, to be closed when the load is complete
+     * @throws IOException if the index settings cannot be updated
+     */
+    public ElasticsearchBulkLoadSession beginBulkLoad(int forceMergeSegments) throws IOException {
+        return new ElasticsearchBulkLoadSession(this, forceMergeSegments);
+    }
+
+    /**
+     * Returns statistics about the triples matching patterns of this graph, cached per pattern
+     *
+     * @return the statistics, or null if statisticsTtlMillis is negative
+     */
+    ElasticsearchGraphStatistics getStatistics() {
+        return this.statistics;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation") // GraphBase only exposes statistics to Jena through GraphStatisticsHandler
+    protected org.apache.jena.graph.GraphStatisticsHandler createStatisticsHandler() {
+        return this.statistics;
+    }
+
+    @Override
+    public void close() {
+        if (this.bulkWriter != null) {
+            this.flush();
+            this.bulkWriter.close();
+        }
+        super.close();
+    }
+
+    /**
+     * Returns the value stored for a node in the subject, predicate, or object field of a document. Blank nodes are
+     * stored as "_:" and their label, and URIs as is. Literals are stored as "L:" followed by '"' and the lexical form
+     * for xsd:string, '@', the language tag, and a space before the lexical form for language-tagged strings, and
+     * '&lt;', the datatype URI, and '&gt;' before the lexical form for other datatypes.
+     *
+     * @param n the node
+     * @return the stored value of n
+     */
+    static String getNodeContent(Node n) {
 
         if (n.isBlank()) {
             return "_:" + n.getBlankNodeLabel();
         } else if (n.isLiteral()) {
-            return "L:" + n.getLiteral().toString();
+            String lang = n.getLiteralLanguage();
+            if (!lang.isEmpty()) {
+                return "L:@" + lang + " " + n.getLiteralLexicalForm();
+            }
+            if (XSDDatatype.XSDstring.getURI().equals(n.getLiteralDatatypeURI())) {
+                return "L:\"" + n.getLiteralLexicalForm();
+            }
+            return "L:<" + n.getLiteralDatatypeURI() + ">" + n.getLiteralLexicalForm();
         } else if (n.isURI()) {
             return n.getURI();
         } else {
@@ -61,156 +361,580 @@ public class ElasticsearchGraph extends GraphBase {
         }
     }
 
+    /**
+     * Returns the Elasticsearch document ID of a concrete triple: the URL-safe Base64 encoding of an MD5 hash
+     * over the stored subject, predicate, and object. Equal triples always map to the same document.
+     *
+     * @param t the triple
+     * @return the ID of the document storing t
+     */
+    static String getDocumentId(Triple t) {
+        return getDocumentId(getNodeContent(t.getSubject()), getNodeContent(t.getPredicate()), getNodeContent(t.getObject()));
+    }
+
+    /**
+     * Returns the Elasticsearch document ID for the stored subject, predicate, and object of a triple
+     *
+     * @param s the stored subject
+     * @param p the stored predicate
+     * @param o the stored object
+     * @return the ID of the document storing the triple
+     */
+    static String getDocumentId(String s, String p, String o) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (String field : new String[]{s, p, o}) {
+                // prefix each field with its length so that field boundaries cannot shift
+                byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+                digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+                digest.update(bytes);
+            }
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the routing value for the documents of triples with a given subject: the stored subject if subject
+     * routing is enabled, so that all triples of a subject are stored in the same shard
+     *
+     * @param subject the subject, or Node.ANY
+     * @return the routing value, or null if subject routing is disabled or the subject is not concrete
+     */
+    String getRouting(Node subject) {
+        return this.getRouting(Collections.singletonList(subject));
+    }
+
+    /**
+     * Returns the routing value for a search among the documents of triples with any of several subjects
+     *
+     * @param subjects the subjects
+     * @return the routing value, or null if the search cannot be routed and must go to all shards
+     */
+    String getRouting(Collection<Node> subjects) {
+        if (!this.subjectRouting) {
+            return null;
+        }
+        StringBuilder routing = new StringBuilder();
+        for (Node subject : subjects) {
+            if (!subject.isConcrete()) {
+                return null;
+            }
+            String value = getNodeContent(subject);
+            if (value.indexOf(',') >= 0) {
+                // multiple routing values are separated by commas
+                return null;
+            }
+            if (routing.length() > 0) {
+                routing.append(',');
+            }
+            routing.append(value);
+        }
+        return routing.length() > 0 ? routing.toString() : null;
+    }
+
+    /**
+     * Returns a request that stores a triple as a document of this graph's index
+     *
+     * @param t the triple to store
+     * @return the index request for t
+     */
+    IndexRequest createIndexRequest(Triple t) {
+        if (this.dictionary != null) {
+            // one request for the nodes of the triple that are not cached
+            this.dictionary.encode(Arrays.asList(t.getSubject(), t.getPredicate(), t.getObject()));
+        }
+        // the triple fields come first, so that getStoredValues can stop reading the source after them
+        Map<String, Object> jsonMap = new LinkedHashMap<>();
+        jsonMap.put("subject", this.encode(t.getSubject()));
+        jsonMap.put("predicate", this.encode(t.getPredicate()));
+        jsonMap.put("object", this.encode(t.getObject()));
+        if (t.getObject().isLiteral()) {
+            ElasticsearchLiteralFields.addFields(t.getObject(), jsonMap);
+        }
+
+        // the document ID is derived from the triple, so adding a triple twice overwrites the same document
+        return new IndexRequest(this.name).id(getDocumentId(t)).routing(this.getRouting(t.getSubject())).source(jsonMap, this.contentType);
+    }
+
+    /**
+     * Returns a new bulk writer for this graph's index, which updates the size of this graph as its requests complete
+     *
+     * @param config the bulk settings of the writer
+     * @return a bulk writer for this graph
+     */
+    ElasticsearchBulkWriter createBulkWriter(ElasticsearchGraphMakerConfiguration config) {
+        return new ElasticsearchBulkWriter(this.client, this.name, config, this.size::addAndGet);
+    }
+
     @Override
     public void performAdd(Triple t) {
-        Map<String, Object> jsonMap = new HashMap<>();
-        jsonMap.put("subject", getNodeContent(t.getSubject()));
-        jsonMap.put("predicate", getNodeContent(t.getPredicate()));
-        jsonMap.put("object", getNodeContent(t.getObject()));
+        final IndexRequest request = this.createIndexRequest(t);
+        if (this.bulkWriter != null) {
+            // buffer the triple; it is sent with the next bulk request
+            this.bulkWritesQueued.incrementAndGet();
+            this.bulkWriter.add(request);
+            this.invalidateCachedPatterns(t);
+            this.recordSessionWrite(t, true);
+            this.logger.debug("Queued triple {} for bulk indexing", t);
+            return;
+        }
 
         try {
-            final IndexRequest request = new IndexRequest(this.name).source(jsonMap);
+            IndexResponse response = this.client.index(request, this.requestOptions);
+            if (response.getResult() == DocWriteResponse.Result.CREATED) {
+                this.size.incrementAndGet();
+            }
             if (this.syncType.equals(ElasticsearchGraphMakerConfiguration.SyncType.SYNCHRONOUS)) {
-                // if this is a synchronous graph, wait for the triple to be added
-                request.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
+                // if this is a synchronous graph, wait for a refresh to make the triple visible
+                this.refreshCoordinator.awaitRefresh();
             }
-            this.client.index(request, RequestOptions.DEFAULT);
         } catch (IOException e) {
             logger.error("Error indexing triple: {}", t, e);
         }
+        this.invalidateCachedPatterns(t);
+        this.recordSessionWrite(t, true);
 
-        this.logger.debug("Added triple {}; graph size = {}", t, this.graphBaseSize());
+        this.logger.debug("Added triple {}; graph size = {}", t, this.size);
     }
 
-    private void blockUntilAdded(Triple t) {
-        final RefreshRequest refreshRequest = new RefreshRequest(this.name);
-        final SearchRequest searchRequest = new SearchRequest();
-        final SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+    /**
+     * Drops the cached find results and statistics of this graph after writes that bypassed it, such as those of an
+     * ElasticsearchGraphLoader; the index of a synchronous or session graph is refreshed first, so that the writes are
+     * read-visible
+     */
+    void invalidateCaches() {
+        if (!this.syncType.equals(ElasticsearchGraphMakerConfiguration.SyncType.ASYNCHRONOUS)) {
+            this.refreshCoordinator.awaitRefresh();
+        }
+        if (this.patternCache != null) {
+            this.patternCache.invalidateAll();
+        }
+        if (this.statistics != null) {
+            this.statistics.clear();
+        }
+    }
 
-        searchSourceBuilder.query(this.constructExactTripleMatchingQuery(t));
-        searchRequest.indices(this.name);
-        searchRequest.source(searchSourceBuilder);
+    /**
+     * Removes the cached find results that a written triple matches; called after the write is sent, so that
+     * searches overlapping with it do not cache their results
+     */
+    private void invalidateCachedPatterns(Triple t) {
+        if (this.patternCache != null) {
+            this.patternCache.invalidate(t);
+        }
+    }
 
-        // Try 10 times to refresh Elasticsearch
-        for (int i = 0; i < 10; ++i) {
-            try {
-                SearchResponse searchResponse = this.client.search(searchRequest, RequestOptions.DEFAULT);
-                if (searchResponse.getHits().getHits().length != 0) {
-                    // contains the triple
-                    return;
-                }
-                RefreshResponse refreshResponse = client.indices().refresh(refreshRequest, RequestOptions.DEFAULT);
-            } catch (IOException e) {
-                this.logger.error("Error refreshing index for graph '{}'", this.name, e);
-            }
+    @Override
+    public void performDelete(Triple t) {
+        if (!t.isConcrete()) {
+            this.deleteByQuery(t);
+            return;
+        }
 
-            if (i > 0) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    this.logger.error("Error waiting for retrying refresh request", e);
-                }
+        final DeleteRequest request = new DeleteRequest(this.name, getDocumentId(t)).routing(this.getRouting(t.getSubject()));
+        if (this.bulkWriter != null && this.bulkWriter.isOrdered()) {
+            // buffer the delete; bulk requests are sent one at a time, so it cannot overtake earlier writes
+            this.bulkWritesQueued.incrementAndGet();
+            this.bulkWriter.add(request);
+            this.invalidateCachedPatterns(t);
+            this.recordSessionWrite(t, false);
+            this.logger.debug("Queued triple {} for bulk deletion", t);
+            return;
+        }
+        if (this.hasPendingBulkWrites()) {
+            // send buffered adds first so that they are not applied after this delete
+            this.flush();
+        }
+
+        try {
+            DeleteResponse response = this.client.delete(request, this.requestOptions);
+            if (response.getResult() == DocWriteResponse.Result.DELETED) {
+                this.size.decrementAndGet();
+            }
+            if (this.syncType.equals(ElasticsearchGraphMakerConfiguration.SyncType.SYNCHRONOUS)) {
+                // if this is a synchronous graph, wait for a refresh to make the deletion visible
+                this.refreshCoordinator.awaitRefresh();
             }
+        } catch (IOException e) {
+            logger.error("Error deleting triple: {}", t, e);
         }
+        this.invalidateCachedPatterns(t);
+        this.recordSessionWrite(t, false);
+
+        this.logger.debug("Deleted triple {}; graph size = {}", t, this.size);
     }
 
-    @Override
-    public void performDelete(Triple t) {
+    /**
+     * Deletes all triples matching a pattern that contains Node.ANY
+     *
+     * @param t the pattern to delete
+     */
+    private void deleteByQuery(Triple t) {
         QueryBuilder queryBuilder = constructTripleMatchingQuery(t);
 
+        if (this.hasPendingBulkWrites()) {
+            // send buffered adds first so that they are not applied after this delete
+            this.flush();
+        }
+        if (this.hasSessionWrites()) {
+            // the delete scrolls over the last refreshed view of the index, which must include the session's writes
+            this.refresh(this.sessionDelta.getSequence());
+        }
+
         logger.debug("Deleting with query {}", queryBuilder.getWriteableName());
 
+        long sessionSequence = this.sessionDelta != null ? this.sessionDelta.getSequence() : 0;
         try {
             DeleteByQueryRequest request = new DeleteByQueryRequest(this.name);
             request.setQuery(queryBuilder);
-            if (this.syncType.equals(ElasticsearchGraphMakerConfiguration.SyncType.SYNCHRONOUS)) {
-                // if this is a synchronous graph, request a refresh
-                request.setRefresh(true);
+            String routing = this.getRouting(t.getSubject());
+            if (routing != null) {
+                request.setRouting(routing);
             }
 
-            this.client.deleteByQuery(request, RequestOptions.DEFAULT);
+            BulkByScrollResponse response = this.client.deleteByQuery(request, this.requestOptions);
+            this.size.addAndGet(-response.getDeleted());
+            if (!this.syncType.equals(ElasticsearchGraphMakerConfiguration.SyncType.ASYNCHRONOUS)) {
+                // if this is a synchronous or session graph, wait for a refresh to make the deletion visible; it
+                // also makes every earlier session write visible
+                this.refresh(sessionSequence);
+            }
 
         } catch (IOException e) {
             logger.error("Error deleting triple: {}", t, e);
         }
 
-        if (this.syncType.equals(ElasticsearchGraphMakerConfiguration.SyncType.SYNCHRONOUS)) {
-            // if this is a synchronous graph, wait for the triple to be added
-            this.blockUntilDeleted(t);
+        if (this.patternCache != null) {
+            this.patternCache.invalidatePattern(t);
         }
 
-        this.logger.debug("Deleted triple {}; graph size = {}", t, this.graphBaseSize());
+        this.logger.debug("Deleted triples matching {}; graph size = {}", t, this.size);
     }
 
-    private void blockUntilDeleted(Triple t) {
-        final RefreshRequest refreshRequest = new RefreshRequest(this.name);
-        final SearchRequest searchRequest = new SearchRequest();
-        final SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+    /**
+     * Answers whether this graph contains a triple matching t. A concrete triple is looked up by its document ID,
+     * which is real-time and does not need a search; other patterns are answered by a count that stops at the first
+     * match, without fetching hits.
+     *
+     * @param t the triple or pattern to look for
+     * @return true if the graph contains a matching triple
+     */
+    @Override
+    protected boolean graphBaseContains(Triple t) {
+        if (!t.isConcrete()) {
+            return this.containsMatch(t);
+        }
+        Boolean written = this.sessionDelta != null ? this.sessionDelta.contains(t) : null;
+        if (written != null) {
+            return written;
+        }
+        this.flushBeforeRead();
 
-        searchSourceBuilder.query(this.constructTripleMatchingQuery(t));
-        searchRequest.indices(this.name);
-        searchRequest.source(searchSourceBuilder);
+        GetRequest request = new GetRequest(this.name, getDocumentId(t)).routing(this.getRouting(t.getSubject()));
+        request.fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE);
+        try {
+            return this.client.exists(request, this.requestOptions);
+        } catch (IOException e) {
+            logger.error("Lookup of triple {} failed", t, e);
+            return false;
+        }
+    }
 
-        // Try 10 times to refresh Elasticsearch
-        for (int i = 0; i < 10; ++i) {
-            try {
-                SearchResponse searchResponse = this.client.search(searchRequest, RequestOptions.DEFAULT);
-                if (searchResponse.getHits().getHits().length == 0) {
-                    // contains the triple
-                    return;
-                }
-                RefreshResponse refreshResponse = client.indices().refresh(refreshRequest, RequestOptions.DEFAULT);
-            } catch (IOException e) {
-                this.logger.error("Error refreshing index for graph '{}'", this.name, e);
+    /**
+     * Returns whether any triple matches a pattern, with a count that stops at the first match instead of a search
+     * that fetches the matches
+     *
+     * @param pattern the pattern, with Node.ANY in place of unbound positions
+     * @return true if a triple of the graph matches the pattern
+     */
+    private boolean containsMatch(Triple pattern) {
+        if (this.sessionDelta != null) {
+            Map<Triple, Boolean> written = this.sessionDelta.matching(pattern);
+            if (written.containsValue(true)) {
+                return true;
             }
-
-            if (i > 0) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    this.logger.error("Error waiting for retrying refresh request", e);
-                }
+            if (!written.isEmpty()) {
+                // the match in Elasticsearch may be a deleted triple; find drops those
+                return super.graphBaseContains(pattern);
             }
         }
+        if (this.patternCache != null) {
+            List<Triple> triples = this.patternCache.get(pattern);
+            if (triples != null) {
+                return !triples.isEmpty();
+            }
+        }
+        this.flushBeforeRead();
+
+        CountRequest request = new CountRequest(this.name)
+                .source(new SearchSourceBuilder().query(this.constructTripleMatchingQuery(pattern)))
+                .routing(this.getRouting(pattern.getSubject()))
+                .terminateAfter(1);
+        try {
+            return this.client.count(request, this.requestOptions).getCount() > 0;
+        } catch (IOException e) {
+            logger.error("Lookup of pattern {} failed", pattern, e);
+            return false;
+        }
     }
 
     @Override
     protected ExtendedIterator<Triple> graphBaseFind(Triple triple) {
         logger.debug("Called graphBaseFind for triple {}", triple);
+        return this.find(triple, null);
+    }
 
-        //final Scroll scroll = new Scroll(TimeValue.timeValueMinutes(1L));
-        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-        searchSourceBuilder.query(this.constructTripleMatchingQuery(triple));
-        searchSourceBuilder.size(10000); // receive up to 10,000 hits per call (10K=max_result_window)
+    /**
+     * Returns an iterator over the triples matching a pattern that also match an additional query, such as a
+     * FILTER translated by ElasticsearchFilterTranslator
+     *
+     * @param triple     the pattern, with Node.ANY in place of unbound positions
+     * @param constraint the query the triples must also match, or null
+     * @return an iterator over the matching triples
+     */
+    ExtendedIterator<Triple> find(Triple triple, QueryBuilder constraint) {
+        this.checkOpen();
+        boolean cached = constraint == null && this.patternCache != null;
+        if (cached) {
+            List<Triple> triples = this.patternCache.get(triple);
+            if (triples != null) {
+                // cached patterns that session writes match have been invalidated
+                return new LocalTripleIterator(triples);
+            }
+        }
+        this.flushBeforeRead();
+        boolean cacheable = !this.hasPendingBulkWrites() && !this.hasSessionWrites();
 
-        SearchRequest searchRequest = new SearchRequest();
-        searchRequest.indices(this.name);
-        searchRequest.source(searchSourceBuilder);
-        //searchRequest.scroll(scroll);
+        // results are fetched lazily, one page at a time, as the iterator is consumed
+        ExtendedIterator<Triple> results = new ElasticsearchTripleIterator(this, this.client, this.name,
+                this.getRouting(triple.getSubject()), constrain(this.constructTripleMatchingQuery(triple), constraint),
+                this.searchPageSize, this.searchPrefetchDepth, this.searchPrefetchMaxBytes);
+        if (cached) {
+            results = this.patternCache.fill(triple, results, cacheable);
+        }
+        return this.withSessionWrites(triple, results);
+    }
 
-        try {
-            SearchResponse searchResponse = this.client.search(searchRequest, RequestOptions.DEFAULT);
-            String scrollId = searchResponse.getScrollId();
-            SearchHit[] searchHits = searchResponse.getHits().getHits();
-            List<Triple> tripleResults = new ArrayList<>();
-
-            for (SearchHit hit : searchHits) {
-                logger.debug("Hit: {}", hit.getSourceAsMap());
-                Map<String, Object> fields = hit.getSourceAsMap();
-                String s = (String) fields.get("subject");
-                String p = (String) fields.get("predicate");
-                String o = (String) fields.get("object");
-
-                tripleResults.add(Triple.create(createNode(s), createNode(p), createNode(o)));
+    /**
+     * Returns the cache of find results of this graph, with its hit and miss counts
+     *
+     * @return the cache, or null if patternCacheMaxBytes is not positive
+     */
+    public ElasticsearchPatternCache getPatternCache() {
+        return this.patternCache;
+    }
+
+    /**
+     * An iterator over find results held locally, whose remove deletes the triple from the graph
+     */
+    private class LocalTripleIterator extends NiceIterator<Triple> {
+        private final Iterator<Triple> triples;
+        private Triple curr = null;
+
+        LocalTripleIterator(List<Triple> triples) {
+            this.triples = triples.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.triples.hasNext();
+        }
+
+        @Override
+        public Triple next() {
+            this.curr = this.triples.next();
+            return this.curr;
+        }
+
+        @Override
+        public void remove() {
+            if (this.curr == null) {
+                throw new IllegalStateException();
             }
+            delete(this.curr);
+        }
+    }
 
-            logger.debug("Find {}; results: {}", triple.toString(), tripleResults.toString());
-            return new ElasticsearchTripleIterator(tripleResults, this);
+    /**
+     * Returns a query matching the documents that match both a query and a constraint
+     *
+     * @param query      the query
+     * @param constraint the constraint, or null
+     * @return the combined query, or query if there is no constraint
+     */
+    static QueryBuilder constrain(QueryBuilder query, QueryBuilder constraint) {
+        if (constraint == null) {
+            return query;
+        }
+        // the constraint does not contribute to scoring, which is never used
+        return new BoolQueryBuilder().must(query).filter(constraint);
+    }
+
+    /**
+     * Returns the value of the subject, predicate, or object field of the documents of triples with a node: its ID
+     * in the node table if this graph is dictionary-encoded, which adds the node to the table if necessary, and its
+     * stored value otherwise
+     *
+     * @param n a concrete node
+     * @return the value for n in the documents of this graph
+     */
+    String encode(Node n) {
+        return this.dictionary != null ? this.dictionary.encode(n) : getNodeContent(n);
+    }
+
+    /**
+     * Adds the nodes of a batch of triples to the node table with one request per probe step, if this graph is
+     * dictionary-encoded, so that their index requests can be created without a request each
+     *
+     * @param triples the triples to be indexed
+     */
+    void encodeNodes(Collection<Triple> triples) {
+        if (this.dictionary == null) {
+            return;
+        }
+        Set<Node> batch = new HashSet<>();
+        for (Triple t : triples) {
+            batch.add(t.getSubject());
+            batch.add(t.getPredicate());
+            batch.add(t.getObject());
+        }
+        this.dictionary.encode(batch);
+    }
+
+    /**
+     * Returns the value to search for in the subject, predicate, or object field of documents to find the triples
+     * with a node. A node that is not in the node table of a dictionary-encoded graph is in no triple, and is
+     * searched for as the empty string, which no document stores.
+     *
+     * @param n a concrete node
+     * @return the value for n in the documents of this graph
+     */
+    String encodeLookup(Node n) {
+        if (this.dictionary == null) {
+            return getNodeContent(n);
+        }
+        String id = this.dictionary.lookup(n);
+        return id != null ? id : "";
+    }
+
+    /**
+     * Returns the node for the value of the subject, predicate, or object field of a document. Nodes of recently
+     * decoded values are reused.
+     *
+     * @param value the value, as returned by encode
+     * @return the node
+     */
+    Node decode(String value) {
+        if (this.dictionary != null) {
+            return this.dictionary.decode(value);
+        }
+        return this.nodeCache != null ? this.nodeCache.get(value) : createNode(value);
+    }
+
+    /**
+     * Reads the nodes of a page of hits from the node table with one request, if this graph is dictionary-encoded,
+     * so that createTriple does not need a request per node
+     *
+     * @param hits the hits
+     */
+    void prefetchNodes(SearchHit[] hits) {
+        if (this.dictionary == null) {
+            return;
+        }
+        Set<String> ids = new HashSet<>();
+        for (SearchHit hit : hits) {
+            Collections.addAll(ids, getStoredValues(hit));
+        }
+        this.dictionary.prefetch(ids);
+    }
+
+    /**
+     * Reads the nodes for field values from the node table with one request, if this graph is dictionary-encoded
+     *
+     * @param values the values, as returned by encode
+     */
+    void prefetchNodes(Collection<String> values) {
+        if (this.dictionary != null) {
+            this.dictionary.prefetch(values);
+        }
+    }
+
+    /**
+     * Returns the triple stored in a document returned by Elasticsearch
+     *
+     * @param hit the search hit for the document
+     * @return the triple stored in the document
+     */
+    Triple createTriple(SearchHit hit) {
+        return this.createTriple(getStoredValues(hit));
+    }
+
+    /**
+     * Returns the triple with the given values of the subject, predicate, and object fields
+     *
+     * @param values the values, as returned by getStoredValues
+     * @return the triple stored with the values
+     */
+    Triple createTriple(String[] values) {
+        return Triple.create(this.decode(values[0]), this.decode(values[1]), this.decode(values[2]));
+    }
+
+    /**
+     * Returns the values of the subject, predicate, and object fields of a document returned by Elasticsearch,
+     * without parsing its source into a map. Hits of searches sorted by subject, predicate, and object (see
+     * ElasticsearchTripleIterator.sortedSearchSource) are read from their sort values, and have no source. The
+     * source of other hits is read with a streaming parser, which stops as soon as it has the three fields. The
+     * client copies sources into the content type of the response, which is the transport content type.
+     *
+     * @param hit the search hit for the document
+     * @return the values of the subject, predicate, and object fields, as returned by encode
+     */
+    String[] getStoredValues(SearchHit hit) {
+        Object[] sortValues = hit.getSortValues();
+        if (hit.getSourceRef() == null && sortValues.length == 3) {
+            return new String[]{(String) sortValues[0], (String) sortValues[1], (String) sortValues[2]};
+        }
+
+        BytesReference source = hit.getSourceRef();
+        String[] values = new String[3];
+        int found = 0;
+        try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, source, this.contentType)) {
+            parser.nextToken();
+            while (found < values.length && parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                int i = getFieldIndex(parser.currentName());
+                if (parser.nextToken() == XContentParser.Token.VALUE_STRING && i >= 0 && values[i] == null) {
+                    values[i] = parser.text();
+                    ++found;
+                } else {
+                    parser.skipChildren();
+                }
+            }
         } catch (IOException e) {
-            logger.error("Search for triple {} failed", triple, e);
+            throw new RuntimeException("Could not read the source of document " + hit.getId(), e);
         }
+        return values;
+    }
 
-        return WrappedIterator.create(new ArrayList<Triple>().iterator());
+    /**
+     * Returns the position of the subject, predicate, or object field in a triple
+     *
+     * @param field the name of a field
+     * @return 0, 1, or 2, or -1 for any other field
+     */
+    static int getFieldIndex(String field) {
+        switch (field) {
+            case "subject":
+                return 0;
+            case "predicate":
+                return 1;
+            case "object":
+                return 2;
+            default:
+                return -1;
+        }
     }
 
     /**
@@ -220,19 +944,19 @@ public class ElasticsearchGraph extends GraphBase {
      * @param triple the triple that the query must match
      * @return a QueryBuilder that will match that triple
      */
-    private QueryBuilder constructTripleMatchingQuery(Triple triple) {
+    QueryBuilder constructTripleMatchingQuery(Triple triple) {
         BoolQueryBuilder queryBuilder = new BoolQueryBuilder();
 
         if (!triple.getSubject().equals(Node.ANY)) {
-            TermQueryBuilder matchSubjectQueryBuilder = new TermQueryBuilder("subject", getNodeContent(triple.getSubject()));
+            TermQueryBuilder matchSubjectQueryBuilder = new TermQueryBuilder("subject", this.encodeLookup(triple.getSubject()));
             queryBuilder = queryBuilder.must(matchSubjectQueryBuilder);
         }
         if (!triple.getPredicate().equals(Node.ANY)) {
-            TermQueryBuilder matchPredicateQueryBuilder = new TermQueryBuilder("predicate", getNodeContent(triple.getPredicate()));
+            TermQueryBuilder matchPredicateQueryBuilder = new TermQueryBuilder("predicate", this.encodeLookup(triple.getPredicate()));
             queryBuilder = queryBuilder.must(matchPredicateQueryBuilder);
         }
         if (!triple.getObject().equals(Node.ANY)) {
-            TermQueryBuilder matchObjectQueryBuilder = new TermQueryBuilder("object", getNodeContent(triple.getObject()));
+            TermQueryBuilder matchObjectQueryBuilder = new TermQueryBuilder("object", this.encodeLookup(triple.getObject()));
             queryBuilder = queryBuilder.must(matchObjectQueryBuilder);
         }
 
@@ -245,40 +969,63 @@ public class ElasticsearchGraph extends GraphBase {
     }
 
     /**
-     * Constructs a BoolQueryBuilder that matches the subject, predicate, and object of a given triple exactly
+     * Constructs a BoolQueryBuilder that matches the triples of several patterns that differ only in one field.
+     * The other fields are matched as in constructTripleMatchingQuery, and the given field must match one of the
+     * given nodes.
      *
-     * @param triple the triple that the query must match
-     * @return a QueryBuilder that will match that triple
+     * @param triple the pattern shared by all patterns, with Node.ANY in place of the varying field
+     * @param field  the varying field: "subject", "predicate", or "object"
+     * @param nodes  the values of the varying field
+     * @return a QueryBuilder that will match the triples of every pattern
      */
-    private QueryBuilder constructExactTripleMatchingQuery(Triple triple) {
-        BoolQueryBuilder queryBuilder = new BoolQueryBuilder();
-
-        TermQueryBuilder matchSubjectQueryBuilder = new TermQueryBuilder("subject", getNodeContent(triple.getSubject()));
-        TermQueryBuilder matchPredicateQueryBuilder = new TermQueryBuilder("predicate", getNodeContent(triple.getPredicate()));
-        TermQueryBuilder matchObjectQueryBuilder = new TermQueryBuilder("object", getNodeContent(triple.getObject()));
-
-        queryBuilder = queryBuilder.must(matchSubjectQueryBuilder);
-        queryBuilder = queryBuilder.must(matchPredicateQueryBuilder);
-        queryBuilder = queryBuilder.must(matchObjectQueryBuilder);
+    QueryBuilder constructTermsMatchingQuery(Triple triple, String field, Collection<Node> nodes) {
+        List<String> values = new ArrayList<>(nodes.size());
+        for (Node n : nodes) {
+            values.add(this.encodeLookup(n));
+        }
 
-        return queryBuilder;
+        BoolQueryBuilder queryBuilder = new BoolQueryBuilder();
+        QueryBuilder sharedQueryBuilder = this.constructTripleMatchingQuery(triple);
+        if (sharedQueryBuilder instanceof BoolQueryBuilder) {
+            queryBuilder = (BoolQueryBuilder) sharedQueryBuilder;
+        }
+        return queryBuilder.must(new TermsQueryBuilder(field, values));
     }
 
     /**
-     * Returns the number of triples in this graph
+     * Returns the number of triples in this graph. The size is tracked locally by the write path and
+     * reconciled with Elasticsearch when it is first needed and then every sizeReconcileIntervalMillis.
      *
      * @return the number of triples in this graph
      */
     @Override
     protected int graphBaseSize() {
+        this.flushBeforeRead();
+        long reconciledAt = this.sizeReconciledAt;
+        if (reconciledAt < 0 || (this.sizeReconcileIntervalMillis >= 0
+                && System.currentTimeMillis() - reconciledAt >= this.sizeReconcileIntervalMillis)) {
+            this.reconcileSize();
+        }
+        return (int) this.size.get();
+    }
+
+    /**
+     * Counts the triples in this graph in Elasticsearch and resets the locally tracked size to the count.
+     * Writes that are not yet read-visible in an asynchronous graph are not counted.
+     *
+     * @return the number of triples in this graph
+     */
+    public long reconcileSize() {
         try {
             CountRequest countRequest = new CountRequest(this.name);
             SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
             searchSourceBuilder.query(QueryBuilders.matchAllQuery());
             countRequest.source(searchSourceBuilder);
 
-            CountResponse response = this.client.count(countRequest, RequestOptions.DEFAULT);
-            return (int) response.getCount();
+            CountResponse response = this.client.count(countRequest, this.requestOptions);
+            this.size.set(response.getCount());
+            this.sizeReconciledAt = System.currentTimeMillis();
+            return response.getCount();
         } catch (IOException e) {
             logger.error("Could not retrieve size of graph '{}'", this.name, e);
             throw new RuntimeException(e);
@@ -291,13 +1038,41 @@ public class ElasticsearchGraph extends GraphBase {
      * @param s the value of the node
      * @return a node corresponding to s
      */
-    private static Node createNode(String s) {
+    static Node createNode(String s) {
         if (s.startsWith("_:")) {
             return NodeFactory.createBlankNode(s.substring(2));
         }
         if (s.startsWith("L:")) {
-            return NodeFactory.createLiteral(s.substring(2));
+            return createLiteral(s);
         }
         return NodeFactory.createURI(s);
     }
+
+    /**
+     * Returns the literal node for a stored value starting with "L:", as encoded by getNodeContent
+     *
+     * @param s the stored value
+     * @return the literal stored as s
+     */
+    private static Node createLiteral(String s) {
+        char tag = s.length() > 2 ? s.charAt(2) : 0;
+        if (tag == '"') {
+            return NodeFactory.createLiteral(s.substring(3));
+        }
+        if (tag == '@') {
+            int space = s.indexOf(' ', 3);
+            if (space > 0) {
+                return NodeFactory.createLiteral(s.substring(space + 1), s.substring(3, space));
+            }
+        }
+        if (tag == '<') {
+            int end = s.indexOf('>', 3);
+            if (end > 0) {
+                RDFDatatype datatype = TypeMapper.getInstance().getSafeTypeByName(s.substring(3, end));
+                return NodeFactory.createLiteral(s.substring(end + 1), datatype);
+            }
+        }
+        // stored before datatypes and language tags were encoded
+        return NodeFactory.createLiteral(s.substring(2));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,258 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.http.HttpHost;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports all triples of an ElasticsearchGraph. The index is read with a sliced scroll, one
+ * slice per shard by default, with every slice read on its own thread. Pages of decoded
+ * triples are handed to the writing thread through a bounded queue, so memory use does not
+ * grow with the size of the graph.
+ * <p>
+ * Usage: ElasticsearchGraphExporter host graph file, where host is an Elasticsearch node
+ * (e.g. http://localhost:9200), graph is the name of the graph, and file is the output file.
+ * The RDF syntax (e.g. N-Triples or RDF Thrift) is chosen from the file extension, and the
+ * output is gzip-compressed if the file name ends with .gz.
+ */
+public class ElasticsearchGraphExporter {
+    private final static Logger logger = LoggerFactory.getLogger(ElasticsearchGraphExporter.class);
+    private final static TimeValue scrollKeepAlive = TimeValue.timeValueMinutes(1L);
+    private final static int pageSize = 1000;
+    private final ElasticsearchGraph graph;
+    private final RestHighLevelClient client;
+    private final String name;
+
+    public ElasticsearchGraphExporter(ElasticsearchGraph g) {
+        this.graph = g;
+        this.client = g.getClient();
+        this.name = g.getIndexName();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: ElasticsearchGraphExporter <host> <graph> <file>");
+            System.exit(1);
+        }
+
+        ElasticsearchGraphMakerConfiguration config = new ElasticsearchGraphMakerConfiguration(
+                ElasticsearchGraphMakerConfiguration.SyncType.ASYNCHRONOUS,
+                HttpHost.create(args[0])
+        );
+        ElasticsearchGraphMaker graphMaker = new ElasticsearchGraphMaker(config);
+        try {
+            ElasticsearchGraph graph = (ElasticsearchGraph) graphMaker.openGraph(args[1], true);
+
+            long startTime = System.currentTimeMillis();
+            long count = new ElasticsearchGraphExporter(graph).export(args[2]);
+            long endTime = System.currentTimeMillis();
+            logger.info("Exported {} triples to {} in {}ms", count, args[2], endTime - startTime);
+        } finally {
+            // the client's threads would keep the JVM running
+            graphMaker.getClient().close();
+        }
+    }
+
+    /**
+     * Writes all triples to a file, in the RDF syntax matching the file extension
+     *
+     * @param fileName the name of the output file; gzip-compressed if it ends with .gz
+     * @return the number of triples written
+     * @throws IOException if the file cannot be written or Elasticsearch cannot be read
+     */
+    public long export(String fileName) throws IOException {
+        boolean gzip = fileName.endsWith(".gz");
+        Lang lang = RDFLanguages.filenameToLang(gzip ? fileName.substring(0, fileName.length() - 3) : fileName, Lang.NTRIPLES);
+
+        try (OutputStream out = gzip
+                ? new GZIPOutputStream(new FileOutputStream(fileName), 1 << 16)
+                : new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16)) {
+            return this.export(out, lang);
+        }
+    }
+
+    /**
+     * Writes all triples to an output stream
+     *
+     * @param out  the stream to write to
+     * @param lang a streaming RDF syntax, e.g. Lang.NTRIPLES or Lang.RDFTHRIFT
+     * @return the number of triples written
+     * @throws IOException if Elasticsearch cannot be read
+     */
+    public long export(OutputStream out, Lang lang) throws IOException {
+        StreamRDF writer = StreamRDFWriter.getWriterStream(out, lang);
+        writer.start();
+        long count = this.export(writer, this.getShardCount());
+        writer.finish();
+        return count;
+    }
+
+    /**
+     * Sends all triples to a StreamRDF sink. The sink is only called from the current thread.
+     *
+     * @param sink   the sink receiving the triples
+     * @param slices the number of slices read in parallel
+     * @return the number of triples sent
+     * @throws IOException if Elasticsearch cannot be read
+     */
+    public long export(StreamRDF sink, int slices) throws IOException {
+        // make sure buffered writes are included
+        this.graph.flush();
+
+        final BlockingQueue<List<Triple>> pages = new ArrayBlockingQueue<>(2 * slices);
+        final List<Triple> endOfSlice = new ArrayList<>();
+        final IOException[] failure = new IOException[1];
+
+        ExecutorService executor = Executors.newFixedThreadPool(slices);
+        for (int i = 0; i < slices; ++i) {
+            final int slice = i;
+            executor.execute(() -> {
+                try {
+                    this.readSlice(slice, slices, pages);
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Could not read slice {} of graph '{}'", slice, this.name, e);
+                    synchronized (failure) {
+                        failure[0] = e instanceof IOException ? (IOException) e : new IOException(e);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    try {
+                        pages.put(endOfSlice);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+
+        long count = 0;
+        boolean completed = false;
+        try {
+            for (int remaining = slices; remaining > 0; ) {
+                List<Triple> page = pages.take();
+                if (page == endOfSlice) {
+                    --remaining;
+                    continue;
+                }
+                for (Triple t : page) {
+                    sink.triple(t);
+                }
+                count += page.size();
+                if (count / 1000000 != (count - page.size()) / 1000000) {
+                    logger.info("Exported {} triples from graph '{}'", count, this.name);
+                }
+            }
+            completed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting graph '" + this.name + "'", e);
+        } finally {
+            if (!completed) {
+                // stop the slice readers, which may be blocked on the full queue
+                executor.shutdownNow();
+            }
+        }
+
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Scrolls through one slice of the index and queues its triples one page at a time
+     */
+    private void readSlice(int slice, int slices, BlockingQueue<List<Triple>> pages) throws IOException, InterruptedException {
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+        searchSourceBuilder.query(QueryBuilders.matchAllQuery());
+        searchSourceBuilder.size(pageSize);
+        searchSourceBuilder.fetchSource(new String[]{"subject", "predicate", "object"}, null);
+        searchSourceBuilder.sort(FieldSortBuilder.DOC_FIELD_NAME); // cheapest order to scroll in
+        if (slices > 1) {
+            searchSourceBuilder.slice(new SliceBuilder(slice, slices));
+        }
+
+        SearchRequest searchRequest = new SearchRequest();
+        searchRequest.indices(this.name);
+        searchRequest.source(searchSourceBuilder);
+        searchRequest.scroll(scrollKeepAlive);
+
+        String scrollId = null;
+        try {
+            SearchResponse searchResponse = this.client.search(searchRequest, this.graph.getRequestOptions());
+            scrollId = searchResponse.getScrollId();
+            SearchHit[] hits = searchResponse.getHits().getHits();
+
+            while (hits.length > 0) {
+                List<Triple> page = new ArrayList<>(hits.length);
+                this.graph.prefetchNodes(hits);
+                for (SearchHit hit : hits) {
+                    page.add(this.graph.createTriple(hit));
+                }
+                pages.put(page);
+
+                SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollId);
+                scrollRequest.scroll(scrollKeepAlive);
+                searchResponse = this.client.scroll(scrollRequest, this.graph.getRequestOptions());
+                scrollId = searchResponse.getScrollId();
+                hits = searchResponse.getHits().getHits();
+            }
+        } finally {
+            if (scrollId != null) {
+                // release the scroll context on the server
+                ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+                clearScrollRequest.addScrollId(scrollId);
+                try {
+                    this.client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
+                } catch (IOException e) {
+                    logger.warn("Could not clear scroll of slice {} of graph '{}'", slice, this.name, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of shards of the index backing the graph
+     */
+    private int getShardCount() throws IOException {
+        GetSettingsRequest request = new GetSettingsRequest().indices(this.name).names("index.number_of_shards");
+        GetSettingsResponse response = this.client.indices().getSettings(request, RequestOptions.DEFAULT);
+        String shards = response.getSetting(this.name, "index.number_of_shards");
+        return shards == null ? 1 : Integer.parseInt(shards);
+    }
+}
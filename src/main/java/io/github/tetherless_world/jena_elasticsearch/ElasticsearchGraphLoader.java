@@ -0,0 +1,195 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.http.HttpHost;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.core.Quad;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads an RDF file into an ElasticsearchGraph. The file is parsed by RIOT on the calling
+ * thread into batches of triples, the batches are encoded into index requests on a pool of
+ * worker threads, and the requests are sent in concurrent bulk requests. The number of
+ * triples indexed, the indexing rate, and the number of triples that could not be indexed are
+ * logged periodically.
+ * <p>
+ * Usage: ElasticsearchGraphLoader host graph file [threads], where host is an Elasticsearch
+ * node (e.g. http://localhost:9200), graph is the name of the graph (created if it does not
+ * exist), file is any file RIOT can parse (e.g. N-Triples or Turtle, optionally gzipped),
+ * and threads is the number of worker threads and concurrent bulk requests. The command line
+ * loader runs in an ElasticsearchBulkLoadSession and force-merges the index when it is done.
+ */
+public class ElasticsearchGraphLoader {
+    private final static Logger logger = LoggerFactory.getLogger(ElasticsearchGraphLoader.class);
+    private final static int batchSize = 1000;
+    private final static long progressIntervalMillis = 10 * 1000;
+    private final ElasticsearchGraph graph;
+    private final ElasticsearchGraphMakerConfiguration config;
+    private final int threads;
+
+    /**
+     * Constructor for ElasticsearchGraphLoader
+     *
+     * @param g       the graph to load triples into
+     * @param config  the bulk settings used while loading
+     * @param threads the number of threads encoding triples into index requests
+     */
+    public ElasticsearchGraphLoader(ElasticsearchGraph g, ElasticsearchGraphMakerConfiguration config, int threads) {
+        this.graph = g;
+        this.config = config;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 && args.length != 4) {
+            System.err.println("Usage: ElasticsearchGraphLoader <host> <graph> <file> [threads]");
+            System.exit(1);
+        }
+        int threads = args.length == 4 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        ElasticsearchGraphMakerConfiguration config = new ElasticsearchGraphMakerConfiguration(
+                ElasticsearchGraphMakerConfiguration.SyncType.ASYNCHRONOUS,
+                HttpHost.create(args[0])
+        );
+        config.bulkConcurrentRequests = threads;
+        ElasticsearchGraphMaker graphMaker = new ElasticsearchGraphMaker(config);
+        try {
+            ElasticsearchGraph graph = (ElasticsearchGraph) graphMaker.openGraph(args[1], false);
+
+            // load without refreshes or replicas, then merge the index into a few segments for reading
+            ElasticsearchBulkLoadSession session = graph.beginBulkLoad(5);
+            try {
+                new ElasticsearchGraphLoader(graph, config, threads).load(args[2]);
+            } finally {
+                session.close();
+            }
+        } finally {
+            // the client's threads would keep the JVM running
+            graphMaker.getClient().close();
+        }
+    }
+
+    /**
+     * Parses a file and loads its triples into the graph. Quads are loaded as triples.
+     *
+     * @param fileName the file to load
+     * @return the number of triples indexed; triples that could not be encoded or were rejected by Elasticsearch
+     * are logged and not counted
+     */
+    public long load(String fileName) {
+        final ElasticsearchBulkWriter writer = this.graph.createBulkWriter(this.config);
+        // a bounded queue with caller-runs backpressure keeps the parser from running ahead of the workers
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(this.threads, this.threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(2 * this.threads), new ThreadPoolExecutor.CallerRunsPolicy());
+        final long startTime = System.currentTimeMillis();
+
+        LoaderSink sink = new LoaderSink(writer, executor, startTime);
+        try {
+            RDFParser.create().source(fileName).parse(sink);
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("Interrupted while waiting for workers to finish", e);
+            }
+            writer.close();
+            // the writes bypassed the graph, so none of its cached results were invalidated
+            this.graph.invalidateCaches();
+        }
+
+        long endTime = System.currentTimeMillis();
+        long indexed = writer.getSucceededItemCount();
+        logger.info("Loaded {} of {} triples from {} into graph '{}' in {}ms ({} triples/sec); {} failed",
+                indexed, sink.count, fileName, this.graph.getIndexName(), endTime - startTime,
+                indexed * 1000 / Math.max(1, endTime - startTime), sink.getFailedCount());
+        return indexed;
+    }
+
+    /**
+     * Collects parsed triples into batches and hands each batch to the workers
+     */
+    private class LoaderSink extends StreamRDFBase {
+        private final ElasticsearchBulkWriter writer;
+        private final ThreadPoolExecutor executor;
+        private final long startTime;
+        private final AtomicLong unencoded = new AtomicLong();
+        private List<Triple> batch = new ArrayList<>(batchSize);
+        private long count = 0;
+        private long lastProgressTime;
+
+        LoaderSink(ElasticsearchBulkWriter writer, ThreadPoolExecutor executor, long startTime) {
+            this.writer = writer;
+            this.executor = executor;
+            this.startTime = startTime;
+            this.lastProgressTime = startTime;
+        }
+
+        @Override
+        public void triple(Triple triple) {
+            this.batch.add(triple);
+            if (this.batch.size() >= batchSize) {
+                this.submitBatch();
+            }
+        }
+
+        @Override
+        public void quad(Quad quad) {
+            this.triple(quad.asTriple());
+        }
+
+        @Override
+        public void finish() {
+            if (!this.batch.isEmpty()) {
+                this.submitBatch();
+            }
+        }
+
+        private void submitBatch() {
+            final List<Triple> triples = this.batch;
+            this.batch = new ArrayList<>(batchSize);
+            this.executor.execute(() -> {
+                int queued = 0;
+                try {
+                    graph.encodeNodes(triples);
+                    for (Triple t : triples) {
+                        this.writer.add(graph.createIndexRequest(t));
+                        ++queued;
+                    }
+                } catch (RuntimeException e) {
+                    // the rest of the batch is lost; count it rather than let the worker die silently
+                    this.unencoded.addAndGet(triples.size() - queued);
+                    logger.error("Could not index {} triples of a batch into graph '{}'",
+                            triples.size() - queued, graph.getIndexName(), e);
+                }
+            });
+            this.count += triples.size();
+
+            long now = System.currentTimeMillis();
+            if (now - this.lastProgressTime >= progressIntervalMillis) {
+                this.lastProgressTime = now;
+                long indexed = this.writer.getSucceededItemCount();
+                logger.info("Indexed {} of {} parsed triples ({} triples/sec); {} failed", indexed, this.count,
+                        indexed * 1000 / Math.max(1, now - this.startTime), this.getFailedCount());
+            }
+        }
+
+        /**
+         * @return the number of triples that could not be encoded or were rejected by Elasticsearch
+         */
+        long getFailedCount() {
+            return this.unencoded.get() + this.writer.getFailedItemCount();
+        }
+    }
+}
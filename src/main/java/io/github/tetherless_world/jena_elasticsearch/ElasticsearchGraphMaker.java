@@ -10,12 +10,14 @@ import org.apache.jena.util.iterator.WrappedIterator;
 import org.elasticsearch.ElasticsearchStatusException;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.support.ActiveShardCount;
+import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.indices.CreateIndexRequest;
 import org.elasticsearch.client.indices.GetIndexRequest;
 import org.elasticsearch.client.indices.GetIndexResponse;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,16 +26,17 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
  * A factory for creating instances of ElasticsearchGraph. Must be configured
- * with an ElasticsearchGraphMakerConfiguration, which defines the HttpHosts and
- * SyncType for the graphs created by this factory.
+ * with an ElasticsearchGraphMakerConfiguration, which defines the HttpHosts,
+ * SyncType and bulk indexing settings for the graphs created by this factory.
  * For a given Elasticsearch instance, the ElasticsearchGraphMaker will treat
  * all indices in the current instance as graphs and obtain their names upon
  * initializing the ElasticsearchGraphMaker, allowing persistent graphs between
@@ -45,17 +48,18 @@ public class ElasticsearchGraphMaker extends BaseGraphMaker {
     private final RestHighLevelClient client;
     private final String elasticsearchIndexSettings;
     private Set<String> graphNames;
-    private final ElasticsearchGraphMakerConfiguration.SyncType syncType;
+    private final ElasticsearchGraphMakerConfiguration config;
+    private final Map<String, ElasticsearchRefreshCoordinator> refreshCoordinators = new ConcurrentHashMap<>();
 
     /**
      * Constructor for ElasticsearchGraphMaker
      *
-     * @param config a configuration object for this GraphMaker containing HttpHosts and the SyncType
+     * @param config a configuration object for this GraphMaker containing HttpHosts, the SyncType and bulk settings
      * @throws IOException
      */
     public ElasticsearchGraphMaker(ElasticsearchGraphMakerConfiguration config) throws IOException {
         // Read the Elasticsearch index settings from the settings resource file
-        InputStream inputStream = getClass().getResourceAsStream(this.settingsPath);
+        InputStream inputStream = getClass().getResourceAsStream(settingsPath);
         StringBuilder resultStringBuilder = new StringBuilder();
         BufferedReader br = new BufferedReader(new InputStreamReader(inputStream));
         String line;
@@ -71,7 +75,11 @@ public class ElasticsearchGraphMaker extends BaseGraphMaker {
         // and add them to the locally tracked set
         this.graphNames = getExistingGraphNames();
 
-        this.syncType = config.syncType;
+        this.config = config;
+    }
+
+    RestHighLevelClient getClient() {
+        return this.client;
     }
 
     private Set<String> getExistingGraphNames() {
@@ -79,7 +87,12 @@ public class ElasticsearchGraphMaker extends BaseGraphMaker {
             GetIndexRequest request = new GetIndexRequest("_all");
             GetIndexResponse response = this.client.indices().get(request, RequestOptions.DEFAULT);
             Set<String> existingGraphNames = new LinkedHashSet<>();
-            existingGraphNames.addAll(Arrays.asList(response.getIndices()));
+            for (String index : response.getIndices()) {
+                // node tables of dictionary-encoded graphs are not graphs themselves
+                if (!index.endsWith(ElasticsearchNodeDictionary.INDEX_SUFFIX)) {
+                    existingGraphNames.add(index);
+                }
+            }
             return existingGraphNames;
         } catch (IOException e) {
             this.logger.error("Could not retrieve existing graph names");
@@ -111,22 +124,19 @@ public class ElasticsearchGraphMaker extends BaseGraphMaker {
                 throw new AlreadyExistsException("Graph '" + validIndexName + "' already exists");
             } else {
                 // return the associated graph
-                return new ElasticsearchGraph(this.client, validIndexName, this.syncType);
+                return this.newGraph(validIndexName);
             }
         } else {
             try {
                 // there is no graph with this name yet
                 // create the index for this graph
-                CreateIndexRequest request = new CreateIndexRequest(validIndexName);
-                request.source(this.elasticsearchIndexSettings, XContentType.JSON);
-                request.waitForActiveShards(ActiveShardCount.from(1));
-                this.client.indices().create(request, RequestOptions.DEFAULT);
+                this.createIndices(validIndexName);
 
                 this.graphNames.add(validIndexName);
                 this.logger.debug("Created graph with name '{}'", validIndexName);
 
                 // return the graph object
-                return new ElasticsearchGraph(this.client, validIndexName, this.syncType);
+                return this.newGraph(validIndexName);
             } catch (Exception e) {
                 this.logger.error("Could not create index '{}'", validIndexName, e);
                 throw new RuntimeException(e);
@@ -150,7 +160,7 @@ public class ElasticsearchGraphMaker extends BaseGraphMaker {
         if (this.graphNames.contains(validIndexName)) {
             // there is already a graph with this name
             // return the associated graph
-            return new ElasticsearchGraph(this.client, validIndexName, this.syncType);
+            return this.newGraph(validIndexName);
         } else {
             // there is no graph with this name yet
             if (strict) {
@@ -161,17 +171,13 @@ public class ElasticsearchGraphMaker extends BaseGraphMaker {
                 // there is no graph with this name yet
                 // create the index for this graph
                 try {
-                    CreateIndexRequest request = new CreateIndexRequest(validIndexName);
-                    request.source(this.elasticsearchIndexSettings, XContentType.JSON);
-                    request.waitForActiveShards(ActiveShardCount.from(1));
-                    this.client.indices().create(request, RequestOptions.DEFAULT);
-
+                    this.createIndices(validIndexName);
 
                     this.graphNames.add(validIndexName);
                     this.logger.debug("Created graph with name '{}'", validIndexName);
 
                     // return the graph object
-                    return new ElasticsearchGraph(this.client, validIndexName, this.syncType);
+                    return this.newGraph(validIndexName);
                 } catch (IOException e) {
                     this.logger.error("Could not create index '{}'", validIndexName, e);
                     throw new RuntimeException(e);
@@ -180,6 +186,57 @@ public class ElasticsearchGraphMaker extends BaseGraphMaker {
         }
     }
 
+    /**
+     * Returns a graph over an index. Graphs over the same index share the coordinator of their refreshes, so that
+     * their synchronous writes are made read-visible together.
+     *
+     * @param indexName the name of the index
+     * @return a new ElasticsearchGraph
+     */
+    private ElasticsearchGraph newGraph(String indexName) {
+        ElasticsearchRefreshCoordinator refreshCoordinator = this.refreshCoordinators.computeIfAbsent(indexName,
+                n -> new ElasticsearchRefreshCoordinator(this.client, n, this.config.refreshCoalesceMillis));
+        return new ElasticsearchGraph(this.client, indexName, this.config, refreshCoordinator);
+    }
+
+    /**
+     * Creates the index for a new graph, and its node table if graphs are dictionary-encoded
+     *
+     * @param indexName the name of the index
+     * @throws IOException if an index could not be created
+     */
+    private void createIndices(String indexName) throws IOException {
+        this.client.indices().create(this.createIndexRequest(indexName), RequestOptions.DEFAULT);
+        if (this.config.dictionaryEncoding) {
+            // nodes are only read by ID, so nothing in the node table is indexed
+            CreateIndexRequest request = new CreateIndexRequest(ElasticsearchNodeDictionary.getIndexName(indexName));
+            request.mapping("{\"enabled\": false}", XContentType.JSON);
+            request.waitForActiveShards(ActiveShardCount.from(1));
+            this.client.indices().create(request, RequestOptions.DEFAULT);
+        }
+    }
+
+    /**
+     * Returns a request that creates the index for a new graph, with the settings from the settings resource file.
+     * If index sorting is configured, segments of the index are sorted by subject, predicate, and object.
+     *
+     * @param indexName the name of the index
+     * @return the create index request
+     */
+    private CreateIndexRequest createIndexRequest(String indexName) {
+        CreateIndexRequest request = new CreateIndexRequest(indexName);
+        request.source(this.elasticsearchIndexSettings, XContentType.JSON);
+        if (this.config.indexSorting) {
+            // the same order as searches, which can then stop early in each segment
+            request.settings(Settings.builder()
+                    .put(request.settings())
+                    .putList("index.sort.field", "subject", "predicate", "object")
+                    .putList("index.sort.order", "asc", "asc", "asc"));
+        }
+        request.waitForActiveShards(ActiveShardCount.from(1));
+        return request;
+    }
+
     /**
      * Removes a graph from Elasticsearch
      *
@@ -191,13 +248,18 @@ public class ElasticsearchGraphMaker extends BaseGraphMaker {
 
         try {
             DeleteIndexRequest request = new DeleteIndexRequest(validIndexName);
+            if (!name.equals("_all")) {
+                // the node table, if the graph is dictionary-encoded
+                request = new DeleteIndexRequest(validIndexName, ElasticsearchNodeDictionary.getIndexName(validIndexName));
+                request.indicesOptions(IndicesOptions.lenientExpandOpen());
+            }
             this.client.indices().delete(request, RequestOptions.DEFAULT);
             if (name.equals("_all")) {
                 this.graphNames.clear();
             } else {
                 this.graphNames.remove(validIndexName);
             }
-            this.logger.debug("Graph '" + validIndexName + "' removed");
+            this.logger.debug("Graph '{}' removed", validIndexName);
         } catch (IOException e) {
             this.logger.error("Could not remove graph '{}'", name, e);
             throw new RuntimeException(e);
@@ -1,12 +1,61 @@
 package io.github.tetherless_world.jena_elasticsearch;
 
 import org.apache.http.HttpHost;
+import org.elasticsearch.common.xcontent.XContentType;
 
 /**
  * A configuration object consisting of:
- * - a SyncType: ASYNCHRONOUS (do not wait for updated data to be read-visible)
- * or SYNCHRONOUS (wait for updated data to be read-visible)
+ * - a SyncType: ASYNCHRONOUS (do not wait for updated data to be read-visible),
+ * SYNCHRONOUS (wait for updated data to be read-visible), or SESSION (do not wait, but
+ * merge the graph's own writes into its reads until the index is refreshed)
  * - a list of HttpHosts: each HttpHost refers to an Elasticsearch node
+ * - optional bulk indexing settings: when bulkIndexing is enabled, added triples are
+ * buffered and sent in bulk requests of up to bulkActions triples or bulkSizeInBytes bytes,
+ * with up to bulkConcurrentRequests requests in flight, flushed at least every
+ * bulkFlushIntervalMillis milliseconds, when the graph is closed, and by ElasticsearchGraph.flush()
+ * - searchPageSize: the number of hits fetched per request while iterating over find results
+ * - searchPrefetchDepth and searchPrefetchMaxBytes: the number of pages (and their maximum
+ * total size) requested in the background ahead of the page being iterated over; a depth
+ * of 0 disables prefetching
+ * - bindJoinBatchSize: the number of input bindings whose lookups are sent together when
+ * SPARQL basic graph patterns over a graph are evaluated
+ * - sizeReconcileIntervalMillis: how often the locally tracked graph size is reconciled
+ * with a count from Elasticsearch; 0 counts on every size request, a negative value only
+ * counts once and when ElasticsearchGraph.reconcileSize() is called
+ * - statisticsTtlMillis and statisticsCacheSize: how long pattern statistics (counts and
+ * distinct values), used to order the triple patterns of SPARQL basic graph patterns, are
+ * used before they are refreshed in the background, and how many patterns they are cached
+ * for; a negative TTL disables statistics and patterns are ordered by fixed heuristics
+ * - subjectRouting: route the documents of triples to shards by their subject, so that
+ * lookups with a bound subject search a single shard; it must be set when a graph is
+ * first created and never changed afterwards, since documents are only found in the
+ * shard they were routed to
+ * - indexSorting: sort the segments of the indices of new graphs by subject, predicate, and
+ * object, the order in which find results are paged, so that each search can stop reading a
+ * segment once it has a page of hits; only applies to graphs created by ElasticsearchGraphMaker
+ * - mergeJoinMinMatches: star-shaped basic graph patterns (all triple patterns share the
+ * subject variable) are merge-joined over subject-sorted streams when every triple pattern
+ * has at least this many matches, according to the graph statistics; a negative value
+ * disables merge joins
+ * - patternCacheMaxBytes: the maximum estimated size of the find results cached per graph,
+ * for patterns with at most searchPageSize matches; writes through the graph invalidate
+ * the patterns they match, and 0 disables the cache
+ * - sessionMaxPendingWrites: the number of writes a SESSION graph merges into its reads
+ * before it refreshes the index to make them read-visible; buffered bulk writes are
+ * flushed first
+ * - refreshCoalesceMillis: how long a refresh for the writes of SYNCHRONOUS and SESSION
+ * graphs waits for concurrent writers to the same index to join it, so that they share
+ * one refresh
+ * - dictionaryEncoding and dictionaryCacheSize: store the IDs of nodes in a node table
+ * instead of the nodes themselves in the subject, predicate, and object fields of triple
+ * documents, and cache the IDs of up to dictionaryCacheSize nodes; like subjectRouting, it
+ * must be set when a graph is first created and never changed afterwards
+ * - nodeCacheMaxBytes: the maximum estimated size of the cache of nodes decoded from the
+ * documents of a graph, which returns the same Node instance for a repeated value; 0
+ * disables the cache
+ * - transportContentType: the format of the documents sent in index and bulk requests and
+ * of the responses to searches and writes: JSON, or the binary SMILE format, which is
+ * smaller and cheaper to encode and parse; the bulk API does not accept CBOR
  * <p>
  * The configuration object can be used to initialize an ElasticsearchGraphMaker
  * factory.
@@ -14,12 +63,49 @@ import org.apache.http.HttpHost;
 public class ElasticsearchGraphMakerConfiguration {
     public enum SyncType {
         ASYNCHRONOUS, // updated data may not be immediately read-visible
-        SYNCHRONOUS   // updated data will be immediately read-visible
+        SYNCHRONOUS,  // updated data will be immediately read-visible
+        SESSION       // updated data will be immediately visible to reads through the same graph
     }
 
     public final HttpHost[] hosts;
     public final SyncType syncType;
 
+    public boolean bulkIndexing = false;
+    public int bulkActions = 1000;
+    public long bulkSizeInBytes = 5 * 1024 * 1024;
+    public int bulkConcurrentRequests = 1;
+    public long bulkFlushIntervalMillis = 1000;
+
+    public int searchPageSize = 1000;
+    public int searchPrefetchDepth = 1;
+    public long searchPrefetchMaxBytes = 32 * 1024 * 1024;
+
+    public int bindJoinBatchSize = 100;
+
+    public long sizeReconcileIntervalMillis = 60 * 1000;
+
+    public long statisticsTtlMillis = 5 * 60 * 1000;
+    public int statisticsCacheSize = 10000;
+
+    public boolean subjectRouting = false;
+
+    public boolean indexSorting = false;
+
+    public long mergeJoinMinMatches = 10000;
+
+    public long patternCacheMaxBytes = 0;
+
+    public int sessionMaxPendingWrites = 10000;
+
+    public long refreshCoalesceMillis = 10;
+
+    public boolean dictionaryEncoding = false;
+    public int dictionaryCacheSize = 100000;
+
+    public long nodeCacheMaxBytes = 16 * 1024 * 1024;
+
+    public XContentType transportContentType = XContentType.JSON;
+
     public ElasticsearchGraphMakerConfiguration(SyncType st, HttpHost... httpHosts) {
         this.syncType = st;
         this.hosts = httpHosts;
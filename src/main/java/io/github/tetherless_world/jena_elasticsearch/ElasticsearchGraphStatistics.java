@@ -0,0 +1,166 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.Cardinality;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Statistics about the triples of an ElasticsearchGraph matching a pattern: their number, and the
+ * (approximate) number of distinct values in each unbound position, from a cardinality aggregation.
+ * Statistics are cached per pattern, for up to statisticsCacheSize patterns. The first request for a
+ * pattern waits for Elasticsearch; once an entry is older than statisticsTtlMillis, it is still
+ * returned while it is refreshed in the background.
+ */
+@SuppressWarnings("deprecation") // GraphBase only exposes statistics to Jena through GraphStatisticsHandler
+class ElasticsearchGraphStatistics implements org.apache.jena.graph.GraphStatisticsHandler {
+    private final static Logger logger = LoggerFactory.getLogger(ElasticsearchGraphStatistics.class);
+    private final static String[] FIELDS = {"subject", "predicate", "object"};
+    private final ElasticsearchGraph graph;
+    private final long ttlMillis;
+    private final Map<Triple, Estimate> cache;
+
+    ElasticsearchGraphStatistics(ElasticsearchGraph g, long ttlMillis, final int maxEntries) {
+        this.graph = g;
+        this.ttlMillis = ttlMillis;
+        this.cache = new LinkedHashMap<Triple, Estimate>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Triple, Estimate> eldest) {
+                return this.size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * The statistics of one pattern
+     */
+    static class Estimate {
+        final long count;
+        /**
+         * The number of distinct subjects, predicates, and objects; 1 for positions bound in the pattern
+         */
+        final long[] distinct;
+        final long fetchedAt;
+        volatile boolean refreshing = false;
+
+        Estimate(long count, long[] distinct, long fetchedAt) {
+            this.count = count;
+            this.distinct = distinct;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    /**
+     * Drops the cached statistics of all patterns
+     */
+    void clear() {
+        synchronized (this.cache) {
+            this.cache.clear();
+        }
+    }
+
+    /**
+     * Returns the number of triples matching a pattern
+     *
+     * @param s the subject, or Node.ANY
+     * @param p the predicate, or Node.ANY
+     * @param o the object, or Node.ANY
+     * @return the number of matching triples, or -1 if it is not known
+     */
+    @Override
+    public long getStatistic(Node s, Node p, Node o) {
+        Estimate estimate = this.estimate(Triple.create(s, p, o));
+        return estimate != null ? estimate.count : -1;
+    }
+
+    /**
+     * Returns the statistics of a pattern
+     *
+     * @param pattern the pattern, with Node.ANY in place of unbound positions
+     * @return the statistics, or null if they could not be retrieved
+     */
+    Estimate estimate(Triple pattern) {
+        Estimate estimate;
+        synchronized (this.cache) {
+            estimate = this.cache.get(pattern);
+        }
+
+        if (estimate == null) {
+            try {
+                estimate = this.parse(pattern, this.graph.getClient().search(this.createRequest(pattern), this.graph.getRequestOptions()));
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Could not retrieve statistics for pattern {} of graph '{}'", pattern, this.graph.getIndexName(), e);
+                return null;
+            }
+            synchronized (this.cache) {
+                this.cache.put(pattern, estimate);
+            }
+        } else if (System.currentTimeMillis() - estimate.fetchedAt >= this.ttlMillis && !estimate.refreshing) {
+            this.refresh(pattern, estimate);
+        }
+        return estimate;
+    }
+
+    /**
+     * Replaces a stale estimate in the background
+     */
+    private void refresh(final Triple pattern, final Estimate stale) {
+        stale.refreshing = true;
+        this.graph.getClient().searchAsync(this.createRequest(pattern), this.graph.getRequestOptions(), new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(SearchResponse response) {
+                Estimate estimate = parse(pattern, response);
+                synchronized (cache) {
+                    cache.put(pattern, estimate);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                // the stale estimate is kept and refreshed on its next use
+                logger.warn("Could not refresh statistics for pattern {} of graph '{}'", pattern, graph.getIndexName(), e);
+                stale.refreshing = false;
+            }
+        });
+    }
+
+    private SearchRequest createRequest(Triple pattern) {
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+        searchSourceBuilder.query(this.graph.constructTripleMatchingQuery(pattern));
+        searchSourceBuilder.size(0);
+        searchSourceBuilder.trackTotalHits(true);
+        Node[] nodes = {pattern.getSubject(), pattern.getPredicate(), pattern.getObject()};
+        for (int i = 0; i < nodes.length; ++i) {
+            if (Node.ANY.equals(nodes[i])) {
+                searchSourceBuilder.aggregation(AggregationBuilders.cardinality(FIELDS[i]).field(FIELDS[i]));
+            }
+        }
+        return new SearchRequest(this.graph.getIndexName()).source(searchSourceBuilder);
+    }
+
+    private Estimate parse(Triple pattern, SearchResponse response) {
+        long[] distinct = {1, 1, 1};
+        if (response.getAggregations() != null) {
+            for (int i = 0; i < FIELDS.length; ++i) {
+                Cardinality cardinality = response.getAggregations().get(FIELDS[i]);
+                if (cardinality != null) {
+                    distinct[i] = cardinality.getValue();
+                }
+            }
+        }
+        long count = response.getHits().getTotalHits().value;
+        logger.debug("Pattern {} of graph '{}' matches {} triples", pattern, this.graph.getIndexName(), count);
+        return new Estimate(count, distinct, System.currentTimeMillis());
+    }
+}
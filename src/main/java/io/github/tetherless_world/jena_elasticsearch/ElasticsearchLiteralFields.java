@@ -0,0 +1,122 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.datatypes.RDFDatatype;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.datatypes.xsd.XSDDateTime;
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.expr.NodeValue;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * The fields describing a literal object of a triple document, besides the object keyword
+ * itself: the lexical form, datatype and language tag of the literal, its value as a double
+ * (and as a long, for integers) if it is a number, and its value in milliseconds since the
+ * epoch if it is an xsd:dateTime or xsd:date. The value fields allow range queries on objects.
+ * The lexical form is also indexed lowercased, as the LEXICAL_LOWERCASE sub-field, for
+ * case-insensitive string matching.
+ */
+final class ElasticsearchLiteralFields {
+    static final String LEXICAL = "object_lexical";
+    static final String LEXICAL_LOWERCASE = "object_lexical.lowercase";
+    static final String DATATYPE = "object_datatype";
+    static final String LANG = "object_lang";
+    static final String LONG = "object_long";
+    static final String DOUBLE = "object_double";
+    static final String DATE = "object_date";
+
+    /**
+     * Dates and times without a timezone are stored as if they were in UTC; their actual instant is
+     * within 14 hours of the stored one
+     */
+    static final long MAX_TIMEZONE_OFFSET_MILLIS = 14 * 60 * 60 * 1000L;
+
+    private ElasticsearchLiteralFields() {
+    }
+
+    /**
+     * Adds the fields describing a literal to the source of a triple document
+     *
+     * @param literal the literal object of the triple
+     * @param source  the source of the document
+     */
+    static void addFields(Node literal, Map<String, Object> source) {
+        source.put(LEXICAL, literal.getLiteralLexicalForm());
+        source.put(DATATYPE, literal.getLiteralDatatypeURI());
+        if (!literal.getLiteralLanguage().isEmpty()) {
+            source.put(LANG, literal.getLiteralLanguage());
+        }
+
+        NodeValue nv = NodeValue.makeNode(literal);
+        Double d = toDouble(nv);
+        if (d != null) {
+            source.put(DOUBLE, d);
+            if (nv.isInteger() && nv.getInteger().bitLength() < 64) {
+                source.put(LONG, nv.getInteger().longValue());
+            }
+        }
+        Long millis = toEpochMillis(nv);
+        if (millis != null) {
+            source.put(DATE, millis);
+        }
+    }
+
+    /**
+     * Lowercases a string one code point at a time, as the lowercase normalizer of the LEXICAL_LOWERCASE field does
+     *
+     * @param s the string
+     * @return the lowercased string
+     */
+    static String lowercase(String s) {
+        StringBuilder lowercased = new StringBuilder(s.length());
+        s.codePoints().forEach(c -> lowercased.appendCodePoint(Character.toLowerCase(c)));
+        return lowercased.toString();
+    }
+
+    /**
+     * Returns the value of a numeric literal as a double
+     *
+     * @param nv the literal
+     * @return the value, or null if the literal is not a number or its value is not finite
+     */
+    static Double toDouble(NodeValue nv) {
+        if (!nv.isNumber()) {
+            return null;
+        }
+        double d = nv.getDouble();
+        return Double.isNaN(d) || Double.isInfinite(d) ? null : d;
+    }
+
+    /**
+     * Returns the instant of an xsd:dateTime or xsd:date literal. Literals without a timezone are read as UTC.
+     *
+     * @param nv the literal
+     * @return the milliseconds since the epoch, or null if the literal is not a valid dateTime or date
+     */
+    static Long toEpochMillis(NodeValue nv) {
+        if (!nv.isDateTime() && !nv.isDate()) {
+            return null;
+        }
+        Object value = nv.asNode().getLiteralValue();
+        if (!(value instanceof XSDDateTime)) {
+            return null;
+        }
+        XSDDateTime dateTime = (XSDDateTime) value;
+
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("GMT"));
+        calendar.clear();
+        calendar.set(dateTime.getYears(), dateTime.getMonths() - 1, dateTime.getDays());
+        RDFDatatype datatype = nv.asNode().getLiteralDatatype();
+        if (!XSDDatatype.XSDdate.equals(datatype)) {
+            double seconds = dateTime.getSeconds();
+            calendar.set(Calendar.HOUR_OF_DAY, dateTime.getHours());
+            calendar.set(Calendar.MINUTE, dateTime.getMinutes());
+            calendar.set(Calendar.SECOND, (int) seconds);
+            calendar.set(Calendar.MILLISECOND, (int) Math.round(1000.0 * (seconds - (int) seconds)));
+        }
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.graph.Node;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Interns the nodes decoded from the stored values of a graph's documents, so that a value that is
+ * returned again, such as a predicate or a popular object, is decoded into the same Node instance
+ * instead of a new one. The cache is bounded by the estimated size of its values and nodes, and
+ * evicts the least recently used values first. It is split into segments by the hash of the value,
+ * each with its own lock and an equal share of the size, so that concurrent iterators rarely wait
+ * for each other. Values longer than MAX_VALUE_LENGTH are not cached, since long literals rarely
+ * repeat.
+ */
+class ElasticsearchNodeCache {
+    private final static int SEGMENTS = 16;
+    private final static int MAX_VALUE_LENGTH = 1024;
+    private final static long ENTRY_OVERHEAD_BYTES = 160;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * Constructor for ElasticsearchNodeCache
+     *
+     * @param maxBytes the maximum estimated size of the cached values and nodes
+     */
+    ElasticsearchNodeCache(long maxBytes) {
+        for (int i = 0; i < SEGMENTS; ++i) {
+            this.segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+    }
+
+    /**
+     * Returns the node for a stored value, decoding it only if it is not cached
+     *
+     * @param value the stored value, as returned by ElasticsearchGraph.getNodeContent
+     * @return the node, shared with earlier calls for the same value
+     */
+    Node get(String value) {
+        if (value.length() > MAX_VALUE_LENGTH) {
+            return ElasticsearchGraph.createNode(value);
+        }
+        Segment segment = this.segments[(value.hashCode() & 0x7fffffff) % SEGMENTS];
+        Node n = segment.get(value);
+        if (n == null) {
+            n = ElasticsearchGraph.createNode(value);
+            segment.put(value, n);
+        }
+        return n;
+    }
+
+    private static long estimateSize(String value) {
+        // the characters of the value, which the node's label or lexical form shares in size, and the objects
+        return ENTRY_OVERHEAD_BYTES + 4L * value.length();
+    }
+
+    private static class Segment {
+        private final long maxBytes;
+        private final Map<String, Node> nodes = new LinkedHashMap<>(16, 0.75f, true);
+        private long sizeInBytes = 0;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized Node get(String value) {
+            return this.nodes.get(value);
+        }
+
+        synchronized void put(String value, Node n) {
+            if (this.nodes.put(value, n) == null) {
+                this.sizeInBytes += estimateSize(value);
+            }
+            Iterator<String> eldest = this.nodes.keySet().iterator();
+            while (this.sizeInBytes > this.maxBytes && eldest.hasNext()) {
+                this.sizeInBytes -= estimateSize(eldest.next());
+                eldest.remove();
+            }
+        }
+    }
+}
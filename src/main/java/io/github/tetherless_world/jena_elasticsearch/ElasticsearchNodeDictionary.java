@@ -0,0 +1,358 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.graph.Node;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The node table of a dictionary-encoded graph, which maps each node to a 64-bit ID. The triple
+ * documents of the graph store the IDs of their nodes, in base 36, instead of the stored values of
+ * the nodes. The table is a separate index, named after the graph's index with the suffix "-nodes",
+ * with one document per node: its ID is the node's ID, and its source holds the stored value of the
+ * node. The ID of a node is derived from a hash of its stored value, so writers need no coordination;
+ * on a collision, the next free ID is taken. Nodes are encoded in batches, with one multi-get and at
+ * most one bulk request per probe step. Both directions of the mapping are cached, for up to
+ * dictionaryCacheSize nodes each, and nodes that lookups did not find are remembered as absent for
+ * ABSENT_TTL_MILLIS.
+ */
+class ElasticsearchNodeDictionary {
+    static final String INDEX_SUFFIX = "-nodes";
+    private final static String VALUE_FIELD = "value";
+    /**
+     * How long a lookup that found no node is trusted; other clients may add the node meanwhile
+     */
+    private final static long ABSENT_TTL_MILLIS = 1000;
+    private final static Logger logger = LoggerFactory.getLogger(ElasticsearchNodeDictionary.class);
+    private final RestHighLevelClient client;
+    private final RequestOptions requestOptions;
+    private final String index;
+    private final Map<Node, String> ids;
+    private final Map<String, Node> nodes;
+    private final Map<Node, Long> absent;
+
+    /**
+     * Constructor for ElasticsearchNodeDictionary
+     *
+     * @param client         the client used to access the node table
+     * @param requestOptions the options of the requests to the node table, those of the graph's requests
+     * @param graphIndex     the name of the index of the graph
+     * @param cacheSize      the number of nodes and IDs cached
+     */
+    ElasticsearchNodeDictionary(RestHighLevelClient client, RequestOptions requestOptions, String graphIndex, int cacheSize) {
+        this.client = client;
+        this.requestOptions = requestOptions;
+        this.index = getIndexName(graphIndex);
+        this.ids = createCache(cacheSize);
+        this.nodes = createCache(cacheSize);
+        this.absent = createCache(cacheSize);
+    }
+
+    private static <K, V> Map<K, V> createCache(final int maxEntries) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return this.size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the name of the node table of a graph
+     *
+     * @param graphIndex the name of the index of the graph
+     * @return the name of the index of its node table
+     */
+    static String getIndexName(String graphIndex) {
+        return graphIndex + INDEX_SUFFIX;
+    }
+
+    /**
+     * Returns the ID of a node, adding the node to the table if it is not in it yet
+     *
+     * @param n a concrete node
+     * @return the ID of n, in base 36
+     */
+    String encode(Node n) {
+        return this.encode(Collections.singleton(n)).get(n);
+    }
+
+    /**
+     * Returns the IDs of nodes, adding the nodes that are not in the table yet
+     *
+     * @param someNodes concrete nodes
+     * @return the ID of each node, in base 36
+     */
+    Map<Node, String> encode(Collection<Node> someNodes) {
+        return this.resolve(someNodes, true);
+    }
+
+    /**
+     * Returns the ID of a node without adding it to the table
+     *
+     * @param n a concrete node
+     * @return the ID of n, in base 36, or null if no triple of the graph contains n
+     */
+    String lookup(Node n) {
+        String id = this.cachedId(n);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this.absent) {
+            Long expiresAt = this.absent.get(n);
+            if (expiresAt != null && expiresAt > System.currentTimeMillis()) {
+                return null;
+            }
+        }
+        return this.resolve(Collections.singleton(n), false).get(n);
+    }
+
+    /**
+     * Finds the IDs of nodes by probing from the hash of each stored value until the value or a free ID is found
+     *
+     * @param someNodes concrete nodes
+     * @param add       true to add the nodes that are not in the table, which takes the free ID found
+     * @return the IDs of the nodes in the table
+     */
+    private Map<Node, String> resolve(Collection<Node> someNodes, boolean add) {
+        Map<Node, String> resolved = new HashMap<>();
+        Map<Node, String> values = new HashMap<>();
+        // the next ID to probe for each node that is not resolved yet
+        Map<Node, Long> probes = new LinkedHashMap<>();
+        for (Node n : someNodes) {
+            String id = this.cachedId(n);
+            if (id != null) {
+                resolved.put(n, id);
+            } else if (!probes.containsKey(n)) {
+                String value = ElasticsearchGraph.getNodeContent(n);
+                values.put(n, value);
+                probes.put(n, this.hash(value));
+            }
+        }
+
+        try {
+            while (!probes.isEmpty()) {
+                List<Node> probed = new ArrayList<>(probes.keySet());
+                List<String> probedIds = new ArrayList<>(probed.size());
+                for (Node n : probed) {
+                    probedIds.add(toId(probes.get(n)));
+                }
+                List<String> stored = this.get(probedIds);
+
+                List<Node> free = new ArrayList<>();
+                List<String> freeIds = new ArrayList<>();
+                List<String> freeValues = new ArrayList<>();
+                for (int i = 0; i < probed.size(); ++i) {
+                    Node n = probed.get(i);
+                    String id = probedIds.get(i);
+                    if (stored.get(i) == null) {
+                        if (add) {
+                            free.add(n);
+                            freeIds.add(id);
+                            freeValues.add(values.get(n));
+                        } else {
+                            probes.remove(n);
+                            this.markAbsent(n);
+                        }
+                    } else if (stored.get(i).equals(values.get(n))) {
+                        probes.remove(n);
+                        this.cache(id, n);
+                        resolved.put(n, id);
+                    } else {
+                        // another node has the ID; try the next one
+                        probes.put(n, probes.get(n) + 1);
+                    }
+                }
+
+                if (!free.isEmpty()) {
+                    List<Boolean> created = this.create(freeIds, freeValues);
+                    for (int i = 0; i < free.size(); ++i) {
+                        // a node whose ID another writer took first is read again with the next get
+                        if (created.get(i)) {
+                            probes.remove(free.get(i));
+                            this.cache(freeIds.get(i), free.get(i));
+                            resolved.put(free.get(i), freeIds.get(i));
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Could not encode {} nodes in '{}'", probes.size(), this.index, e);
+            throw new RuntimeException(e);
+        }
+        return resolved;
+    }
+
+    /**
+     * Returns the node with an ID
+     *
+     * @param id the ID, in base 36
+     * @return the node
+     */
+    Node decode(String id) {
+        Node n;
+        synchronized (this.nodes) {
+            n = this.nodes.get(id);
+        }
+        if (n != null) {
+            return n;
+        }
+        this.prefetch(Collections.singleton(id));
+        synchronized (this.nodes) {
+            n = this.nodes.get(id);
+        }
+        if (n == null) {
+            throw new IllegalStateException("Node " + id + " is not in '" + this.index + "'");
+        }
+        return n;
+    }
+
+    /**
+     * Reads the nodes with the given IDs into the cache with a single request, so that they can be decoded without
+     * a request each
+     *
+     * @param someIds the IDs, in base 36
+     */
+    void prefetch(Collection<String> someIds) {
+        List<String> missing = new ArrayList<>();
+        synchronized (this.nodes) {
+            for (String id : someIds) {
+                if (!this.nodes.containsKey(id)) {
+                    missing.add(id);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        try {
+            List<String> values = this.get(missing);
+            for (int i = 0; i < missing.size(); ++i) {
+                if (values.get(i) != null) {
+                    this.cache(missing.get(i), ElasticsearchGraph.createNode(values.get(i)));
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Could not read {} nodes from '{}'", missing.size(), this.index, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String cachedId(Node n) {
+        synchronized (this.ids) {
+            return this.ids.get(n);
+        }
+    }
+
+    private void cache(String id, Node n) {
+        synchronized (this.ids) {
+            this.ids.put(n, id);
+        }
+        synchronized (this.nodes) {
+            this.nodes.put(id, n);
+        }
+        synchronized (this.absent) {
+            this.absent.remove(n);
+        }
+    }
+
+    private void markAbsent(Node n) {
+        synchronized (this.absent) {
+            this.absent.put(n, System.currentTimeMillis() + ABSENT_TTL_MILLIS);
+        }
+    }
+
+    /**
+     * Reads the stored values of the nodes with some IDs with one multi-get
+     *
+     * @param someIds the IDs, in base 36, possibly repeated
+     * @return the stored value of the node with each ID, or null where there is none
+     */
+    List<String> get(List<String> someIds) throws IOException {
+        MultiGetRequest request = new MultiGetRequest();
+        for (String id : someIds) {
+            request.add(this.index, id);
+        }
+        List<String> values = new ArrayList<>(someIds.size());
+        for (MultiGetItemResponse item : this.client.mget(request, this.requestOptions).getResponses()) {
+            if (item.isFailed()) {
+                // failures parsed from a response carry no status, so a missing table is told apart with a request
+                if (!this.client.indices().exists(new GetIndexRequest(this.index), this.requestOptions)) {
+                    // an existing index opened as a dictionary-encoded graph has no node table until its first node
+                    // is added, which creates the table
+                    return Collections.nCopies(someIds.size(), null);
+                }
+                throw new IOException("Could not read node " + item.getId() + " from '" + this.index + "'",
+                        item.getFailure().getFailure());
+            }
+            values.add(item.getResponse().isExists() ? (String) item.getResponse().getSourceAsMap().get(VALUE_FIELD) : null);
+        }
+        return values;
+    }
+
+    /**
+     * Adds nodes with one bulk request, each only if there is no node with its ID yet
+     *
+     * @param someIds the IDs, in base 36
+     * @param values  the stored value of the node to add with each ID
+     * @return whether each node was added; false if there already was a node with its ID
+     */
+    List<Boolean> create(List<String> someIds, List<String> values) throws IOException {
+        BulkRequest request = new BulkRequest();
+        for (int i = 0; i < someIds.size(); ++i) {
+            request.add(new IndexRequest(this.index).id(someIds.get(i)).opType(DocWriteRequest.OpType.CREATE)
+                    .source(Collections.singletonMap(VALUE_FIELD, values.get(i))));
+        }
+        List<Boolean> created = new ArrayList<>(someIds.size());
+        for (BulkItemResponse item : this.client.bulk(request, this.requestOptions)) {
+            if (!item.isFailed()) {
+                created.add(true);
+            } else if (item.getFailure().getStatus() == RestStatus.CONFLICT) {
+                created.add(false);
+            } else {
+                throw new IOException("Could not add node " + item.getId() + " to '" + this.index + "'",
+                        item.getFailure().getCause());
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Returns the first 64 bits of an MD5 hash of a stored value
+     */
+    long hash(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            return ByteBuffer.wrap(digest.digest(value.getBytes(StandardCharsets.UTF_8))).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toId(long hash) {
+        return Long.toUnsignedString(hash, 36);
+    }
+}
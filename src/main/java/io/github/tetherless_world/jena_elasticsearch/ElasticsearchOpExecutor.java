@@ -0,0 +1,164 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.ARQ;
+import org.apache.jena.sparql.algebra.op.OpBGP;
+import org.apache.jena.sparql.algebra.op.OpFilter;
+import org.apache.jena.sparql.algebra.op.OpGroup;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.core.VarExprList;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.iterator.QueryIterDistinguishedVars;
+import org.apache.jena.sparql.engine.iterator.QueryIterFilterExpr;
+import org.apache.jena.sparql.engine.main.OpExecutor;
+import org.apache.jena.sparql.engine.main.OpExecutorFactory;
+import org.apache.jena.sparql.engine.main.QC;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprAggregator;
+import org.apache.jena.sparql.expr.aggregate.AggCount;
+import org.apache.jena.sparql.expr.aggregate.AggCountVar;
+import org.apache.jena.sparql.expr.aggregate.Aggregator;
+import org.elasticsearch.index.query.QueryBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Executes SPARQL algebra over an ElasticsearchGraph. A FILTER directly over a basic graph pattern is
+ * translated by ElasticsearchFilterTranslator into queries on the objects of the triples binding the
+ * filtered variables, so that Elasticsearch only returns candidate triples. The filter is still
+ * evaluated on the resulting bindings, since the translated queries are conservative.
+ * <p>
+ * A GROUP BY over a single triple pattern whose aggregates are all non-distinct counts is answered
+ * by QueryIterElasticsearchGroupCount with an aggregation in Elasticsearch.
+ */
+class ElasticsearchOpExecutor extends OpExecutor {
+    ElasticsearchOpExecutor(ExecutionContext execCxt) {
+        super(execCxt);
+    }
+
+    /**
+     * Registers a factory for ElasticsearchOpExecutor in the global ARQ context, in front of the current factory,
+     * which is still used for queries over other graphs. Does nothing if one is already registered.
+     */
+    static synchronized void register() {
+        OpExecutorFactory current = QC.getFactory(ARQ.getContext());
+        if (!(current instanceof Factory)) {
+            QC.setFactory(ARQ.getContext(), new Factory(current != null ? current : OpExecutor.stdFactory));
+        }
+    }
+
+    @Override
+    protected QueryIterator execute(OpFilter opFilter, QueryIterator input) {
+        Graph activeGraph = this.execCxt.getActiveGraph();
+        if (!(activeGraph instanceof ElasticsearchGraph) || !(opFilter.getSubOp() instanceof OpBGP)) {
+            return super.execute(opFilter, input);
+        }
+        Map<Var, QueryBuilder> objectConstraints = ElasticsearchFilterTranslator.objectConstraints(opFilter.getExprs());
+        if (objectConstraints.isEmpty()) {
+            return super.execute(opFilter, input);
+        }
+
+        QueryIterator qIter = ElasticsearchStageGenerator.execute((ElasticsearchGraph) activeGraph,
+                ((OpBGP) opFilter.getSubOp()).getPattern(), objectConstraints, input, this.execCxt);
+        if (this.execCxt.getContext().isTrue(ARQ.hideNonDistiguishedVariables)) {
+            qIter = new QueryIterDistinguishedVars(qIter, this.execCxt);
+        }
+        for (Expr expr : opFilter.getExprs()) {
+            qIter = new QueryIterFilterExpr(qIter, expr, this.execCxt);
+        }
+        return qIter;
+    }
+
+    @Override
+    protected QueryIterator execute(OpGroup opGroup, QueryIterator input) {
+        QueryIterator qIter = this.executeGroupCount(opGroup, input);
+        return qIter != null ? qIter : super.execute(opGroup, input);
+    }
+
+    /**
+     * Answers a group over a single triple pattern with an aggregation, if all of its aggregates are counts of
+     * solutions and it only groups by variables of the pattern
+     *
+     * @return the groups, or null if the group cannot be answered with an aggregation
+     */
+    private QueryIterator executeGroupCount(OpGroup opGroup, QueryIterator input) {
+        Graph activeGraph = this.execCxt.getActiveGraph();
+        if (!(activeGraph instanceof ElasticsearchGraph) || !input.isJoinIdentity()
+                || !(opGroup.getSubOp() instanceof OpBGP) || ((OpBGP) opGroup.getSubOp()).getPattern().size() != 1) {
+            return null;
+        }
+        ElasticsearchGraph graph = (ElasticsearchGraph) activeGraph;
+        if (graph.hasSessionWrites()) {
+            // an aggregation would not count the writes that searches do not see yet
+            return null;
+        }
+        Triple pattern = ((OpBGP) opGroup.getSubOp()).getPattern().get(0);
+
+        // the field binding each variable of the pattern; a repeated variable cannot be expressed as an aggregation
+        Map<Var, String> fields = new HashMap<>();
+        Node[] nodes = {pattern.getSubject(), pattern.getPredicate(), pattern.getObject()};
+        String[] names = {"subject", "predicate", "object"};
+        for (int i = 0; i < nodes.length; ++i) {
+            if (Var.isVar(nodes[i]) && fields.put(Var.alloc(nodes[i]), names[i]) != null) {
+                return null;
+            }
+        }
+
+        Map<Var, String> groupFields = new LinkedHashMap<>();
+        VarExprList groupVars = opGroup.getGroupVars();
+        for (Var v : groupVars.getVars()) {
+            if (groupVars.getExpr(v) != null || !fields.containsKey(v)) {
+                return null;
+            }
+            groupFields.put(v, fields.get(v));
+        }
+
+        // every solution binds every variable of the pattern, so COUNT(?v) counts the same as COUNT(*)
+        List<Var> countVars = new ArrayList<>();
+        for (ExprAggregator aggregator : opGroup.getAggregators()) {
+            Aggregator agg = aggregator.getAggregator();
+            boolean countsSolutions = agg instanceof AggCount || (agg instanceof AggCountVar
+                    && agg.getExprList().get(0).isVariable() && fields.containsKey(agg.getExprList().get(0).asVar()));
+            if (!countsSolutions) {
+                return null;
+            }
+            countVars.add(aggregator.getVar());
+        }
+
+        graph.flushBeforeRead();
+        Triple lookup = Triple.create(lookupNode(pattern.getSubject()), lookupNode(pattern.getPredicate()),
+                lookupNode(pattern.getObject()));
+        return new QueryIterElasticsearchGroupCount(input, graph, graph.constructTripleMatchingQuery(lookup),
+                groupFields, countVars, this.execCxt);
+    }
+
+    private static Node lookupNode(Node n) {
+        return Var.isVar(n) ? Node.ANY : n;
+    }
+
+    /**
+     * Creates an ElasticsearchOpExecutor for queries over an ElasticsearchGraph, and uses the previous factory otherwise
+     */
+    private static class Factory implements OpExecutorFactory {
+        private final OpExecutorFactory other;
+
+        Factory(OpExecutorFactory other) {
+            this.other = other;
+        }
+
+        @Override
+        public OpExecutor create(ExecutionContext execCxt) {
+            if (execCxt.getActiveGraph() instanceof ElasticsearchGraph) {
+                return new ElasticsearchOpExecutor(execCxt);
+            }
+            return this.other.create(execCxt);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of the complete results of find patterns of one ElasticsearchGraph, bounded by the
+ * estimated size of the cached triples and evicting the least recently used pattern first.
+ * Only results of at most one page of hits are cached.
+ * <p>
+ * Every write through the graph invalidates exactly the cached patterns that the written triple
+ * matches. Results are not cached while a write may not be visible to searches yet: while bulk
+ * writes are buffered, while a find overlaps with a write, and, for asynchronous graphs, until
+ * the index has had time to refresh after the last write. Writes by other clients of the index
+ * are not seen, so the cache should only be enabled when the graph is written to through this
+ * client.
+ */
+public class ElasticsearchPatternCache {
+    /**
+     * The default refresh interval of an Elasticsearch index
+     */
+    private final static long REFRESH_INTERVAL_MILLIS = 1000;
+    private final static long TRIPLE_OVERHEAD_BYTES = 96;
+    private final static long ENTRY_OVERHEAD_BYTES = 128;
+
+    private final long maxBytes;
+    private final int maxTriplesPerPattern;
+    private final long quietMillis;
+    private final Map<Triple, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeInBytes = 0;
+    private long generation = 0;
+    private long lastWriteAt = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Constructor for ElasticsearchPatternCache
+     *
+     * @param maxBytes             the maximum estimated size of the cached triples
+     * @param maxTriplesPerPattern the maximum number of triples cached for a pattern
+     * @param quietMillis          how long after a write results are not cached, in addition to the refresh interval;
+     *                             negative if writes are read-visible when they return
+     */
+    ElasticsearchPatternCache(long maxBytes, int maxTriplesPerPattern, long quietMillis) {
+        this.maxBytes = maxBytes;
+        this.maxTriplesPerPattern = maxTriplesPerPattern;
+        this.quietMillis = quietMillis < 0 ? 0 : quietMillis + REFRESH_INTERVAL_MILLIS;
+    }
+
+    private static class Entry {
+        final List<Triple> triples;
+        final long sizeInBytes;
+
+        Entry(List<Triple> triples, long sizeInBytes) {
+            this.triples = triples;
+            this.sizeInBytes = sizeInBytes;
+        }
+    }
+
+    /**
+     * Returns the cached results of a pattern
+     *
+     * @param pattern the pattern, with Node.ANY in place of unbound positions
+     * @return the cached triples matching the pattern, or null if the pattern is not cached
+     */
+    List<Triple> get(Triple pattern) {
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(pattern);
+        }
+        if (entry == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return entry.triples;
+    }
+
+    /**
+     * Returns an iterator that passes on the results of a pattern, and caches them if they are consumed completely
+     *
+     * @param pattern the pattern
+     * @param results the results of a search for the pattern
+     * @param cacheable false if the results must not be cached, e.g. because writes are buffered
+     * @return an iterator over results
+     */
+    ExtendedIterator<Triple> fill(Triple pattern, ExtendedIterator<Triple> results, boolean cacheable) {
+        long startGeneration;
+        synchronized (this) {
+            if (!cacheable || System.currentTimeMillis() - this.lastWriteAt < this.quietMillis) {
+                return results;
+            }
+            startGeneration = this.generation;
+        }
+        return new FillingIterator(pattern, results, startGeneration);
+    }
+
+    private synchronized void put(Triple pattern, List<Triple> triples, long startGeneration) {
+        if (this.generation != startGeneration) {
+            // a write during the search may or may not be included in the results
+            return;
+        }
+        long size = ENTRY_OVERHEAD_BYTES;
+        for (Triple t : triples) {
+            size += estimateSize(t);
+        }
+        if (size > this.maxBytes) {
+            return;
+        }
+
+        Entry previous = this.entries.put(pattern, new Entry(Collections.unmodifiableList(triples), size));
+        if (previous != null) {
+            this.sizeInBytes -= previous.sizeInBytes;
+        }
+        this.sizeInBytes += size;
+        Iterator<Entry> eldest = this.entries.values().iterator();
+        while (this.sizeInBytes > this.maxBytes && eldest.hasNext()) {
+            this.sizeInBytes -= eldest.next().sizeInBytes;
+            eldest.remove();
+            this.evictions.incrementAndGet();
+        }
+    }
+
+    private static long estimateSize(Triple t) {
+        // two bytes per character of the stored values, plus the nodes and the triple
+        return TRIPLE_OVERHEAD_BYTES + 2L * (ElasticsearchGraph.getNodeContent(t.getSubject()).length()
+                + ElasticsearchGraph.getNodeContent(t.getPredicate()).length()
+                + ElasticsearchGraph.getNodeContent(t.getObject()).length());
+    }
+
+    /**
+     * Removes the cached patterns that a written triple matches: the patterns with each of its positions either
+     * bound to the triple's node or unbound
+     *
+     * @param t the added or deleted triple
+     */
+    synchronized void invalidate(Triple t) {
+        this.generation++;
+        this.lastWriteAt = System.currentTimeMillis();
+        for (int mask = 0; mask < 8; ++mask) {
+            Triple pattern = Triple.create((mask & 1) != 0 ? Node.ANY : t.getSubject(),
+                    (mask & 2) != 0 ? Node.ANY : t.getPredicate(),
+                    (mask & 4) != 0 ? Node.ANY : t.getObject());
+            this.remove(pattern);
+        }
+    }
+
+    /**
+     * Removes the cached patterns that may share a triple with a deleted pattern
+     *
+     * @param deleted the pattern, with Node.ANY in place of unbound positions
+     */
+    synchronized void invalidatePattern(Triple deleted) {
+        this.generation++;
+        this.lastWriteAt = System.currentTimeMillis();
+        List<Triple> overlapping = new ArrayList<>();
+        for (Triple pattern : this.entries.keySet()) {
+            if (overlaps(pattern.getSubject(), deleted.getSubject()) && overlaps(pattern.getPredicate(), deleted.getPredicate())
+                    && overlaps(pattern.getObject(), deleted.getObject())) {
+                overlapping.add(pattern);
+            }
+        }
+        for (Triple pattern : overlapping) {
+            this.remove(pattern);
+        }
+    }
+
+    private static boolean overlaps(Node a, Node b) {
+        return Node.ANY.equals(a) || Node.ANY.equals(b) || a.equals(b);
+    }
+
+    private void remove(Triple pattern) {
+        Entry entry = this.entries.remove(pattern);
+        if (entry != null) {
+            this.sizeInBytes -= entry.sizeInBytes;
+            this.invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes all cached patterns after writes that bypassed the graph, which any pattern may match; like other
+     * writes, they keep results from being cached during the quiet window
+     */
+    synchronized void invalidateAll() {
+        this.lastWriteAt = System.currentTimeMillis();
+        this.clear();
+    }
+
+    /**
+     * Removes all cached patterns
+     */
+    public synchronized void clear() {
+        this.generation++;
+        this.entries.clear();
+        this.sizeInBytes = 0;
+    }
+
+    /**
+     * @return the number of finds answered from the cache
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of finds that were not cached
+     */
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of patterns removed to make room for others
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    /**
+     * @return the number of patterns removed because a triple matching them was written
+     */
+    public long getInvalidationCount() {
+        return this.invalidations.get();
+    }
+
+    /**
+     * @return the number of cached patterns
+     */
+    public synchronized int getPatternCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the estimated size of the cached triples
+     */
+    public synchronized long getSizeInBytes() {
+        return this.sizeInBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ElasticsearchPatternCache[hits=%d, misses=%d, evictions=%d, invalidations=%d, patterns=%d, bytes=%d]",
+                this.getHitCount(), this.getMissCount(), this.getEvictionCount(), this.getInvalidationCount(),
+                this.getPatternCount(), this.getSizeInBytes());
+    }
+
+    /**
+     * Passes on search results and caches them once they have all been consumed, unless there are too many
+     */
+    private class FillingIterator extends NiceIterator<Triple> {
+        private final Triple pattern;
+        private final ExtendedIterator<Triple> results;
+        private final long startGeneration;
+        private List<Triple> consumed = new ArrayList<>();
+
+        FillingIterator(Triple pattern, ExtendedIterator<Triple> results, long startGeneration) {
+            this.pattern = pattern;
+            this.results = results;
+            this.startGeneration = startGeneration;
+        }
+
+        @Override
+        public boolean hasNext() {
+            boolean hasNext = this.results.hasNext();
+            if (!hasNext && this.consumed != null) {
+                put(this.pattern, this.consumed, this.startGeneration);
+                this.consumed = null;
+            }
+            return hasNext;
+        }
+
+        @Override
+        public Triple next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Triple t = this.results.next();
+            if (this.consumed != null) {
+                this.consumed.add(t);
+                if (this.consumed.size() > maxTriplesPerPattern) {
+                    this.consumed = null;
+                }
+            }
+            return t;
+        }
+
+        @Override
+        public void remove() {
+            this.results.remove();
+        }
+
+        @Override
+        public void close() {
+            this.consumed = null;
+            this.results.close();
+        }
+    }
+}
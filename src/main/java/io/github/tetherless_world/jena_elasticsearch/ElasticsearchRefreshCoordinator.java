@@ -0,0 +1,106 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Makes the writes to an index read-visible by refreshing it, with one refresh for many concurrent
+ * writers. A writer whose write has completed calls awaitRefresh, which waits for a refresh that
+ * starts after the call. The first waiting writer waits refreshCoalesceMillis for others to join,
+ * then refreshes the index once and wakes every writer waiting for that refresh. Writers that
+ * arrive while a refresh is running are served by the next one.
+ */
+class ElasticsearchRefreshCoordinator {
+    private final static Logger logger = LoggerFactory.getLogger(ElasticsearchRefreshCoordinator.class);
+    private final RestHighLevelClient client;
+    private final String name;
+    private final long coalesceMillis;
+    private long started = 0;
+    private long completed = 0;
+    private boolean refreshing = false;
+    private boolean succeeded = true;
+
+    /**
+     * Constructor for ElasticsearchRefreshCoordinator
+     *
+     * @param client         the client used to refresh the index
+     * @param name           the name of the index
+     * @param coalesceMillis how long a refresh waits for more writers before it starts
+     */
+    ElasticsearchRefreshCoordinator(RestHighLevelClient client, String name, long coalesceMillis) {
+        this.client = client;
+        this.name = name;
+        this.coalesceMillis = coalesceMillis;
+    }
+
+    /**
+     * Waits until the index has been refreshed by a refresh that started after this call, so that every write that
+     * completed before the call is read-visible
+     *
+     * @return false if the refresh failed or the wait was interrupted
+     */
+    boolean awaitRefresh() {
+        long needed;
+        synchronized (this) {
+            needed = this.started + 1;
+        }
+
+        while (true) {
+            synchronized (this) {
+                while (this.refreshing && this.completed < needed) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                if (this.completed >= needed) {
+                    return this.succeeded;
+                }
+                // no refresh is running that started after the call; this writer runs the next one
+                this.refreshing = true;
+            }
+
+            if (this.coalesceMillis > 0) {
+                try {
+                    Thread.sleep(this.coalesceMillis);
+                } catch (InterruptedException e) {
+                    // refresh right away, so that the writers that joined are not left waiting
+                    Thread.currentThread().interrupt();
+                }
+            }
+            long generation;
+            synchronized (this) {
+                generation = ++this.started;
+            }
+            boolean refreshed = this.refresh();
+            synchronized (this) {
+                this.completed = generation;
+                this.succeeded = refreshed;
+                this.refreshing = false;
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Refreshes the index
+     *
+     * @return false if the refresh failed
+     */
+    boolean refresh() {
+        try {
+            this.client.indices().refresh(new RefreshRequest(this.name), RequestOptions.DEFAULT);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.error("Error refreshing index for graph '{}'", this.name, e);
+            return false;
+        }
+    }
+}
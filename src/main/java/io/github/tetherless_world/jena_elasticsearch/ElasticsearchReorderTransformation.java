@@ -0,0 +1,45 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.optimizer.reorder.PatternElements;
+import org.apache.jena.sparql.engine.optimizer.reorder.PatternTriple;
+import org.apache.jena.sparql.engine.optimizer.reorder.ReorderTransformationSubstitution;
+import org.apache.jena.sparql.sse.Item;
+
+/**
+ * Orders the triple patterns of a basic graph pattern by their estimated number of matches, from
+ * ElasticsearchGraphStatistics. A pattern is weighted by the number of triples matching its
+ * constants; each position bound by an earlier pattern divides the weight by the number of
+ * distinct values in that position, as the expected number of matches per binding.
+ */
+class ElasticsearchReorderTransformation extends ReorderTransformationSubstitution {
+    private final ElasticsearchGraphStatistics statistics;
+
+    ElasticsearchReorderTransformation(ElasticsearchGraphStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    @Override
+    protected double weight(PatternTriple pt) {
+        Item[] items = {pt.subject, pt.predicate, pt.object};
+        Node[] lookup = new Node[items.length];
+        for (int i = 0; i < items.length; ++i) {
+            boolean constant = items[i].isNode() && !Var.isVar(items[i].getNode());
+            lookup[i] = constant ? items[i].getNode() : Node.ANY;
+        }
+
+        ElasticsearchGraphStatistics.Estimate estimate = this.statistics.estimate(Triple.create(lookup[0], lookup[1], lookup[2]));
+        if (estimate == null) {
+            return -1;
+        }
+        double weight = estimate.count;
+        for (int i = 0; i < items.length; ++i) {
+            if (PatternElements.isAnyTerm(items[i])) {
+                weight /= Math.max(1, estimate.distinct[i]);
+            }
+        }
+        return weight;
+    }
+}
@@ -0,0 +1,154 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The triples added to and deleted from a SESSION graph that searches may not see yet, because the
+ * index has not been refreshed since they were written. Reads merge these writes with the results
+ * from Elasticsearch, so that a client always reads its own writes without waiting for a refresh
+ * after each of them. Writes are dropped once a refresh that started after them has completed.
+ * The written triples are indexed by subject, predicate, and object, so that matching a pattern
+ * with a bound position does not scan every write.
+ */
+class ElasticsearchSessionDelta {
+    private final Map<Triple, Write> writes = new HashMap<>();
+    private final Map<Node, Set<Triple>> bySubject = new HashMap<>();
+    private final Map<Node, Set<Triple>> byPredicate = new HashMap<>();
+    private final Map<Node, Set<Triple>> byObject = new HashMap<>();
+    private long sequence = 0;
+
+    private static class Write {
+        final boolean added;
+        final long sequence;
+
+        Write(boolean added, long sequence) {
+            this.added = added;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Records a triple that was added, or queued to be added
+     */
+    synchronized void add(Triple t) {
+        this.record(t, true);
+    }
+
+    /**
+     * Records a triple that was deleted, or queued to be deleted
+     */
+    synchronized void delete(Triple t) {
+        this.record(t, false);
+    }
+
+    private void record(Triple t, boolean added) {
+        if (this.writes.put(t, new Write(added, ++this.sequence)) == null) {
+            this.bySubject.computeIfAbsent(t.getSubject(), n -> new HashSet<>()).add(t);
+            this.byPredicate.computeIfAbsent(t.getPredicate(), n -> new HashSet<>()).add(t);
+            this.byObject.computeIfAbsent(t.getObject(), n -> new HashSet<>()).add(t);
+        }
+    }
+
+    /**
+     * @return the sequence number of the last recorded write, to be passed to prune after a refresh
+     */
+    synchronized long getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Drops the writes up to a sequence number, which a refresh has made visible to searches
+     *
+     * @param upTo the sequence number returned by getSequence before the refresh started
+     */
+    synchronized void prune(long upTo) {
+        Iterator<Map.Entry<Triple, Write>> entries = this.writes.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Triple, Write> entry = entries.next();
+            if (entry.getValue().sequence <= upTo) {
+                entries.remove();
+                Triple t = entry.getKey();
+                unindex(this.bySubject, t.getSubject(), t);
+                unindex(this.byPredicate, t.getPredicate(), t);
+                unindex(this.byObject, t.getObject(), t);
+            }
+        }
+    }
+
+    private static void unindex(Map<Node, Set<Triple>> index, Node n, Triple t) {
+        Set<Triple> triples = index.get(n);
+        triples.remove(t);
+        if (triples.isEmpty()) {
+            index.remove(n);
+        }
+    }
+
+    synchronized int size() {
+        return this.writes.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return this.writes.isEmpty();
+    }
+
+    /**
+     * Returns whether a concrete triple was last added or deleted
+     *
+     * @param t the triple
+     * @return true if t was added, false if it was deleted, or null if it was not written since the last refresh
+     */
+    synchronized Boolean contains(Triple t) {
+        Write write = this.writes.get(t);
+        return write != null ? write.added : null;
+    }
+
+    /**
+     * Returns the writes of triples matching a pattern. Bound positions match the same terms only, as in the
+     * queries sent to Elasticsearch, so a literal does not match another literal with the same value.
+     *
+     * @param pattern the pattern, with Node.ANY in place of unbound positions
+     * @return the matching triples written since the last refresh, mapped to true if they were added and false if
+     * they were deleted
+     */
+    synchronized Map<Triple, Boolean> matching(Triple pattern) {
+        // scan the fewest candidates: those sharing the most selective bound position
+        Collection<Triple> candidates = this.writes.keySet();
+        candidates = smallest(candidates, pattern.getSubject(), this.bySubject);
+        candidates = smallest(candidates, pattern.getPredicate(), this.byPredicate);
+        candidates = smallest(candidates, pattern.getObject(), this.byObject);
+
+        Map<Triple, Boolean> matching = new HashMap<>();
+        for (Triple t : candidates) {
+            if (matches(pattern.getSubject(), t.getSubject()) && matches(pattern.getPredicate(), t.getPredicate())
+                    && matches(pattern.getObject(), t.getObject())) {
+                matching.put(t, this.writes.get(t).added);
+            }
+        }
+        return matching;
+    }
+
+    private static Collection<Triple> smallest(Collection<Triple> candidates, Node n, Map<Node, Set<Triple>> index) {
+        if (n.equals(Node.ANY)) {
+            return candidates;
+        }
+        Set<Triple> triples = index.get(n);
+        if (triples == null) {
+            return Collections.emptySet();
+        }
+        return triples.size() < candidates.size() ? triples : candidates;
+    }
+
+    private static boolean matches(Node pattern, Node n) {
+        // Node.equals compares terms; Node.matches would compare literals by value
+        return pattern.equals(Node.ANY) || pattern.equals(n);
+    }
+}
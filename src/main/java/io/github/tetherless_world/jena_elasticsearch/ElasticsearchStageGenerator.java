@@ -0,0 +1,147 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.ARQ;
+import org.apache.jena.sparql.core.BasicPattern;
+import org.apache.jena.sparql.core.Substitute;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.iterator.QueryIterPeek;
+import org.apache.jena.sparql.engine.main.StageBuilder;
+import org.apache.jena.sparql.engine.main.StageGenerator;
+import org.apache.jena.sparql.engine.optimizer.reorder.ReorderLib;
+import org.apache.jena.sparql.engine.optimizer.reorder.ReorderProc;
+import org.apache.jena.sparql.engine.optimizer.reorder.ReorderTransformation;
+import org.elasticsearch.index.query.QueryBuilder;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Evaluates SPARQL basic graph patterns over an ElasticsearchGraph. Each triple pattern is
+ * joined with a QueryIterElasticsearchPattern, which looks up the pattern for a whole batch
+ * of bindings at once instead of calling Graph.find once per binding. Basic graph patterns
+ * over other graphs are passed on to the previously registered StageGenerator.
+ * <p>
+ * Star-shaped basic graph patterns whose triple patterns all have many matches are instead
+ * evaluated by QueryIterElasticsearchMergeJoin, which reads each triple pattern once, in subject order.
+ */
+public class ElasticsearchStageGenerator implements StageGenerator {
+    private final static ReorderTransformation reorderFixed = ReorderLib.fixed();
+    private final StageGenerator other;
+
+    public ElasticsearchStageGenerator(StageGenerator other) {
+        this.other = other;
+    }
+
+    /**
+     * Registers an ElasticsearchStageGenerator in the global ARQ context, in front of the current StageGenerator.
+     * Called when Jena is initialized; does nothing if one is already registered.
+     */
+    public static synchronized void register() {
+        StageGenerator current = StageBuilder.chooseStageGenerator(ARQ.getContext());
+        if (!(current instanceof ElasticsearchStageGenerator)) {
+            StageBuilder.setGenerator(ARQ.getContext(), new ElasticsearchStageGenerator(current));
+        }
+    }
+
+    @Override
+    public QueryIterator execute(BasicPattern pattern, QueryIterator input, ExecutionContext execCxt) {
+        Graph activeGraph = execCxt.getActiveGraph();
+        if (!(activeGraph instanceof ElasticsearchGraph)) {
+            return this.other.execute(pattern, input, execCxt);
+        }
+        return execute((ElasticsearchGraph) activeGraph, pattern, Collections.emptyMap(), input, execCxt);
+    }
+
+    /**
+     * Returns the transformation that orders the triple patterns of basic graph patterns over a graph: by
+     * estimated number of matches if the graph has statistics, by fixed heuristics otherwise
+     */
+    private static ReorderTransformation reorderTransformation(ElasticsearchGraph graph) {
+        ElasticsearchGraphStatistics statistics = graph.getStatistics();
+        if (statistics != null) {
+            return new ElasticsearchReorderTransformation(statistics);
+        }
+        return reorderFixed;
+    }
+
+    /**
+     * Decides whether to evaluate a basic graph pattern with a merge join: it must be star-shaped, with the same
+     * subject variable in every triple pattern, and every triple pattern must have at least mergeJoinMinMatches
+     * matches, since reading each pattern once is then cheaper than looking up matches binding by binding
+     */
+    private static boolean useMergeJoin(ElasticsearchGraph graph, BasicPattern pattern) {
+        long minMatches = graph.getConfiguration().mergeJoinMinMatches;
+        ElasticsearchGraphStatistics statistics = graph.getStatistics();
+        // the matches of session writes are not in subject order
+        if (minMatches < 0 || pattern.size() < 2 || statistics == null
+                || graph.hasSessionWrites()) {
+            return false;
+        }
+        Node subject = pattern.get(0).getSubject();
+        if (!Var.isVar(subject)) {
+            return false;
+        }
+        for (Triple triple : pattern) {
+            if (!subject.equals(triple.getSubject())) {
+                return false;
+            }
+        }
+        for (Triple triple : pattern) {
+            Triple lookup = Triple.create(Node.ANY, Var.isVar(triple.getPredicate()) ? Node.ANY : triple.getPredicate(),
+                    Var.isVar(triple.getObject()) ? Node.ANY : triple.getObject());
+            ElasticsearchGraphStatistics.Estimate estimate = statistics.estimate(lookup);
+            if (estimate == null || estimate.count < minMatches) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluates a basic graph pattern over an ElasticsearchGraph
+     *
+     * @param graph             the graph
+     * @param pattern           the basic graph pattern
+     * @param objectConstraints queries that the triples binding a variable in the object position must also match,
+     *                          as returned by ElasticsearchFilterTranslator
+     * @param input             the bindings to join with the pattern
+     * @param execCxt           the execution context
+     * @return the bindings of the pattern joined with input
+     */
+    static QueryIterator execute(ElasticsearchGraph graph, BasicPattern pattern, Map<Var, QueryBuilder> objectConstraints,
+                                 QueryIterator input, ExecutionContext execCxt) {
+        if (!input.hasNext()) {
+            return input;
+        }
+
+        if (input.isJoinIdentity() && useMergeJoin(graph, pattern)) {
+            return new QueryIterElasticsearchMergeJoin(input, graph, pattern, objectConstraints, execCxt);
+        }
+
+        if (pattern.size() >= 2) {
+            // order the patterns based on the first input binding, as the generic StageGenerator does
+            BasicPattern substituted = pattern;
+            if (!input.isJoinIdentity()) {
+                QueryIterPeek peek = QueryIterPeek.create(input, execCxt);
+                input = peek;
+                Binding b = peek.peek();
+                substituted = Substitute.substitute(pattern, b);
+            }
+            ReorderProc reorderProc = reorderTransformation(graph).reorderIndexes(substituted);
+            pattern = reorderProc.reorder(pattern);
+        }
+
+        QueryIterator chain = input;
+        for (Triple triple : pattern) {
+            QueryBuilder objectConstraint = triple.getObject().isVariable() ? objectConstraints.get(Var.alloc(triple.getObject())) : null;
+            chain = new QueryIterElasticsearchPattern(chain, triple, graph, objectConstraint, execCxt);
+        }
+        return chain;
+    }
+}
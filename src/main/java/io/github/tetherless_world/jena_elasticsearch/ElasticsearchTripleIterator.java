@@ -1,28 +1,219 @@
 package io.github.tetherless_world.jena_elasticsearch;
 
-import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.util.iterator.NiceIterator;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.NoSuchElementException;
 
 /**
- * An iterator over results returned by Elasticsearch.
+ * An iterator over results returned by Elasticsearch. Results are fetched lazily, one page
+ * at a time. Pages are sorted by subject, predicate, and object, which identify a document
+ * uniquely, so each page continues after the last hit of the previous one using search_after.
+ * <p>
+ * Pages are requested asynchronously. With a prefetch depth greater than zero, the next page
+ * is requested as soon as the previous one arrives, while the consumer is still iterating,
+ * until prefetchDepth pages or prefetchMaxBytes bytes of hits are buffered. With a depth of
+ * zero, a page is only requested once the current page has been consumed.
  */
 class ElasticsearchTripleIterator extends NiceIterator<Triple> {
     private final static Logger logger = LoggerFactory.getLogger(ElasticsearchGraph.class);
-    private final Graph graph;
-    private final Collection<Triple> collection;
-    private final Iterator<Triple> iter;
+    private final static SearchHit[] EMPTY_PAGE = new SearchHit[0];
+    private final ElasticsearchGraph graph;
+    private final RestHighLevelClient client;
+    private final String index;
+    private final SearchRequest searchRequest;
+    private final int pageSize;
+    private final int prefetchDepth;
+    private final long prefetchMaxBytes;
+    private SearchHit[] page = EMPTY_PAGE;
+    private int position = 0;
     private Triple curr = null;
 
-    public ElasticsearchTripleIterator(Collection<Triple> c, Graph g) {
+    // state shared with the response listener, guarded by this.lock
+    private final Object lock = new Object();
+    private final Deque<SearchHit[]> prefetched = new ArrayDeque<>();
+    private long prefetchedBytes = 0;
+    private Object[] lastSortValues = null;
+    private boolean requestInFlight = false;
+    private boolean lastPageReceived = false;
+    private boolean closed = false;
+    private Exception failure = null;
+
+    /**
+     * Constructor for ElasticsearchTripleIterator
+     *
+     * @param g                the graph that is iterated over
+     * @param client           the client used to fetch pages
+     * @param index            the name of the index backing the graph
+     * @param routing          the routing value of the shards to search, or null to search all shards
+     * @param query            the query that the returned triples match
+     * @param pageSize         the number of hits fetched per request
+     * @param prefetchDepth    the maximum number of pages requested ahead of the consumer
+     * @param prefetchMaxBytes the maximum size of the hits in pages requested ahead of the consumer
+     */
+    ElasticsearchTripleIterator(ElasticsearchGraph g, RestHighLevelClient client, String index, String routing,
+                                QueryBuilder query, int pageSize, int prefetchDepth, long prefetchMaxBytes) {
         this.graph = g;
-        this.collection = c;
-        this.iter = this.collection.iterator();
+        this.client = client;
+        this.index = index;
+        this.pageSize = pageSize;
+        this.prefetchDepth = prefetchDepth;
+        this.prefetchMaxBytes = prefetchMaxBytes;
+
+        this.searchRequest = new SearchRequest();
+        this.searchRequest.indices(index);
+        this.searchRequest.routing(routing);
+        this.searchRequest.source(sortedSearchSource(query, pageSize));
+    }
+
+    /**
+     * Returns a search for the first page of hits matching a query, in the order used for paging
+     *
+     * @param query    the query that the hits match
+     * @param pageSize the number of hits per page
+     * @return the search source for the first page
+     */
+    static SearchSourceBuilder sortedSearchSource(QueryBuilder query, int pageSize) {
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+        searchSourceBuilder.query(query);
+        searchSourceBuilder.size(pageSize);
+        searchSourceBuilder.sort("subject", SortOrder.ASC);
+        searchSourceBuilder.sort("predicate", SortOrder.ASC);
+        searchSourceBuilder.sort("object", SortOrder.ASC);
+        // the total is never used; without it, a search of an index sorted in this order stops early in each segment
+        searchSourceBuilder.trackTotalHits(false);
+        // the sort values of each hit are its subject, predicate, and object, so the source is not needed
+        searchSourceBuilder.fetchSource(false);
+        return searchSourceBuilder;
+    }
+
+    /**
+     * Requests the page following the last page received. Must be called holding this.lock.
+     */
+    private void requestNextPage() {
+        if (this.lastSortValues != null) {
+            this.searchRequest.source().searchAfter(this.lastSortValues);
+        }
+        this.requestInFlight = true;
+
+        // the request body is serialized before searchAsync returns, so the request may be reused afterwards
+        this.client.searchAsync(this.searchRequest, this.graph.getRequestOptions(), new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(SearchResponse searchResponse) {
+                pageReceived(searchResponse.getHits().getHits());
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                synchronized (lock) {
+                    requestInFlight = false;
+                    failure = e;
+                    lock.notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Requests the next page ahead of the consumer if the prefetch depth and memory bound allow it.
+     * Must be called holding this.lock.
+     */
+    private void prefetch() {
+        if (!this.requestInFlight && !this.lastPageReceived && !this.closed && this.failure == null
+                && this.prefetched.size() < this.prefetchDepth && this.prefetchedBytes < this.prefetchMaxBytes) {
+            this.requestNextPage();
+        }
+    }
+
+    private void pageReceived(SearchHit[] hits) {
+        synchronized (this.lock) {
+            this.requestInFlight = false;
+            if (this.closed) {
+                return;
+            }
+
+            if (hits.length < this.pageSize) {
+                // a short page is the last page
+                this.lastPageReceived = true;
+            }
+            if (hits.length > 0) {
+                this.lastSortValues = hits[hits.length - 1].getSortValues();
+                this.prefetched.addLast(hits);
+                this.prefetchedBytes += estimateSize(hits);
+            }
+            logger.debug("Fetched page of {} hits from '{}'", hits.length, this.index);
+
+            this.lock.notifyAll();
+            this.prefetch();
+        }
+    }
+
+    /**
+     * Replaces the consumed page with the next page, waiting for it to arrive if necessary
+     */
+    private void takeNextPage() {
+        synchronized (this.lock) {
+            while (this.prefetched.isEmpty() && !this.lastPageReceived && this.failure == null) {
+                if (!this.requestInFlight) {
+                    this.requestNextPage();
+                }
+                try {
+                    this.lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    this.close();
+                    throw new RuntimeException(e);
+                }
+            }
+
+            if (this.failure != null) {
+                logger.error("Search for next page of results from '{}' failed", this.index, this.failure);
+                Exception e = this.failure;
+                this.close();
+                throw new RuntimeException(e);
+            }
+
+            SearchHit[] next = this.prefetched.pollFirst();
+            if (next != null) {
+                this.prefetchedBytes -= estimateSize(next);
+                this.page = next;
+                this.prefetch();
+            } else {
+                this.page = EMPTY_PAGE;
+            }
+            this.position = 0;
+        }
+        // outside the lock, since it may wait for the node table
+        this.graph.prefetchNodes(this.page);
+    }
+
+    private boolean isExhausted() {
+        synchronized (this.lock) {
+            return this.closed || (this.lastPageReceived && this.prefetched.isEmpty());
+        }
+    }
+
+    private static long estimateSize(SearchHit[] hits) {
+        long size = 0;
+        for (SearchHit hit : hits) {
+            for (Object value : hit.getSortValues()) {
+                size += 2 * ((String) value).length();
+            }
+        }
+        return size;
     }
 
     @Override
@@ -30,19 +221,40 @@ class ElasticsearchTripleIterator extends NiceIterator<Triple> {
         if (this.curr != null) {
             this.graph.delete(this.curr);
         } else {
-            logger.debug("No such element but remove called on iterator: collection={}",this.collection);
+            logger.debug("No such element but remove called on iterator");
             throw new UnsupportedOperationException();
         }
     }
 
     @Override
     public Triple next() {
-        this.curr = this.iter.next();
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SearchHit hit = this.page[this.position];
+        // drop the reference to the hit so that consumed hits can be garbage collected
+        this.page[this.position++] = null;
+        this.curr = this.graph.createTriple(hit);
         return this.curr;
     }
 
     @Override
     public boolean hasNext() {
-        return this.iter.hasNext();
+        while (this.position >= this.page.length && !this.isExhausted()) {
+            this.takeNextPage();
+        }
+        return this.position < this.page.length;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this.lock) {
+            // a response that is still in flight is discarded when it arrives
+            this.closed = true;
+            this.prefetched.clear();
+            this.prefetchedBytes = 0;
+        }
+        this.page = EMPTY_PAGE;
+        this.position = 0;
     }
 }
@@ -0,0 +1,19 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.sys.JenaSubsystemLifecycle;
+
+/**
+ * Registers the SPARQL query extensions for ElasticsearchGraph when Jena is initialized.
+ * Listed in META-INF/services/org.apache.jena.sys.JenaSubsystemLifecycle.
+ */
+public class InitJenaElasticsearch implements JenaSubsystemLifecycle {
+    @Override
+    public void start() {
+        ElasticsearchStageGenerator.register();
+        ElasticsearchOpExecutor.register();
+    }
+
+    @Override
+    public void stop() {
+    }
+}
@@ -0,0 +1,183 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.engine.iterator.QueryIter1;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.serializer.SerializationContext;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.core.CountRequest;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers a GROUP BY with COUNT aggregates over a single triple pattern with an Elasticsearch
+ * composite aggregation, instead of grouping every matching triple in ARQ. Each bucket of the
+ * aggregation is one group: the grouped variables are bound to its key, and every count to its
+ * document count. Buckets are fetched one page at a time, so high-cardinality groupings are
+ * streamed. Without grouped variables, the single group is counted with a count request.
+ */
+class QueryIterElasticsearchGroupCount extends QueryIter1 {
+    private final static Logger logger = LoggerFactory.getLogger(QueryIterElasticsearchGroupCount.class);
+    private final static String AGGREGATION_NAME = "groups";
+    private final ElasticsearchGraph graph;
+    private final QueryBuilder query;
+    private final Map<Var, String> groupFields;
+    private final List<Var> countVars;
+    private final int pageSize;
+
+    private Iterator<? extends CompositeAggregation.Bucket> buckets = Collections.emptyIterator();
+    private Map<String, Object> afterKey = null;
+    private boolean lastPageReceived = false;
+    private boolean countReturned = false;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Constructor for QueryIterElasticsearchGroupCount
+     *
+     * @param input       the input of the group, which must be the join identity
+     * @param graph       the graph
+     * @param query       the query matching the triples of the pattern
+     * @param groupFields the grouped variables, in order, and the field of the pattern that binds each one
+     * @param countVars   the variables that the counts are bound to
+     * @param execCxt     the execution context
+     */
+    QueryIterElasticsearchGroupCount(QueryIterator input, ElasticsearchGraph graph, QueryBuilder query,
+                                     Map<Var, String> groupFields, List<Var> countVars, ExecutionContext execCxt) {
+        super(input, execCxt);
+        this.graph = graph;
+        this.query = query;
+        this.groupFields = groupFields;
+        this.countVars = countVars;
+        this.pageSize = graph.getConfiguration().searchPageSize;
+    }
+
+    /**
+     * Fetches the next page of buckets
+     */
+    private void nextPage() {
+        List<CompositeValuesSourceBuilder<?>> sources = new ArrayList<>(this.groupFields.size());
+        for (String field : this.groupFields.values()) {
+            sources.add(new TermsValuesSourceBuilder(field).field(field));
+        }
+        CompositeAggregationBuilder aggregation = new CompositeAggregationBuilder(AGGREGATION_NAME, sources).size(this.pageSize);
+        if (this.afterKey != null) {
+            aggregation.aggregateAfter(this.afterKey);
+        }
+
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+        searchSourceBuilder.query(this.query);
+        searchSourceBuilder.size(0);
+        searchSourceBuilder.trackTotalHits(false);
+        searchSourceBuilder.aggregation(aggregation);
+        SearchRequest request = new SearchRequest(this.graph.getIndexName());
+        request.source(searchSourceBuilder);
+
+        try {
+            SearchResponse response = this.graph.getClient().search(request, this.graph.getRequestOptions());
+            CompositeAggregation groups = response.getAggregations().get(AGGREGATION_NAME);
+            List<? extends CompositeAggregation.Bucket> page = groups.getBuckets();
+            logger.debug("Fetched page of {} groups from '{}'", page.size(), this.graph.getIndexName());
+            List<String> values = new ArrayList<>();
+            for (CompositeAggregation.Bucket bucket : page) {
+                for (String field : this.groupFields.values()) {
+                    values.add((String) bucket.getKey().get(field));
+                }
+            }
+            this.graph.prefetchNodes(values);
+            this.buckets = page.iterator();
+            this.afterKey = groups.afterKey();
+            if (page.size() < this.pageSize || this.afterKey == null) {
+                this.lastPageReceived = true;
+            }
+        } catch (IOException e) {
+            logger.error("Aggregation over '{}' failed", this.graph.getIndexName(), e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Counts the matching triples, as the only group when no variables are grouped
+     */
+    private long count() {
+        CountRequest request = new CountRequest(this.graph.getIndexName());
+        request.source(new SearchSourceBuilder().query(this.query));
+        try {
+            return this.graph.getClient().count(request, this.graph.getRequestOptions()).getCount();
+        } catch (IOException e) {
+            logger.error("Count over '{}' failed", this.graph.getIndexName(), e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Binding bind(Map<String, Object> key, long count) {
+        BindingMap binding = BindingFactory.create();
+        for (Map.Entry<Var, String> group : this.groupFields.entrySet()) {
+            binding.add(group.getKey(), this.graph.decode((String) key.get(group.getValue())));
+        }
+        for (Var v : this.countVars) {
+            binding.add(v, NodeValue.makeInteger(count).asNode());
+        }
+        return binding;
+    }
+
+    @Override
+    protected boolean hasNextBinding() {
+        if (this.groupFields.isEmpty()) {
+            return !this.countReturned && !this.cancelled;
+        }
+        while (!this.buckets.hasNext()) {
+            if (this.cancelled || this.lastPageReceived) {
+                return false;
+            }
+            this.nextPage();
+        }
+        return true;
+    }
+
+    @Override
+    protected Binding moveToNextBinding() {
+        if (this.groupFields.isEmpty()) {
+            this.countReturned = true;
+            return this.bind(Collections.emptyMap(), this.count());
+        }
+        CompositeAggregation.Bucket bucket = this.buckets.next();
+        return this.bind(bucket.getKey(), bucket.getDocCount());
+    }
+
+    @Override
+    protected void requestSubCancel() {
+        this.cancelled = true;
+    }
+
+    @Override
+    protected void closeSubIterator() {
+        this.buckets = Collections.emptyIterator();
+    }
+
+    @Override
+    protected void details(IndentedWriter out, SerializationContext sCxt) {
+        out.print("ElasticsearchGroupCount ");
+        out.print(this.groupFields.keySet().toString());
+    }
+}
@@ -0,0 +1,216 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.core.BasicPattern;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.engine.iterator.QueryIter1;
+import org.apache.jena.sparql.serializer.SerializationContext;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+import org.elasticsearch.index.query.QueryBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates a star-shaped basic graph pattern, whose triple patterns all share the same subject
+ * variable, by merge-joining the matches of each triple pattern. Find results are sorted by
+ * subject, so each pattern is read as one paged stream. The streams are advanced together, one
+ * subject at a time, and the matches of every pattern for a subject found in all of them are
+ * combined into bindings. Only the matches for the current subject are held in memory, and the
+ * streams are only read as far as the bindings are consumed.
+ */
+class QueryIterElasticsearchMergeJoin extends QueryIter1 {
+    private final ElasticsearchGraph graph;
+    private final BasicPattern pattern;
+    private final List<ExtendedIterator<Triple>> streams;
+    private final Triple[] heads;
+    private final String[] headSubjects;
+    private Iterator<Binding> output = Collections.emptyIterator();
+    private boolean exhausted = false;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Constructor for QueryIterElasticsearchMergeJoin
+     *
+     * @param input             the input of the pattern, which must be the join identity
+     * @param graph             the graph
+     * @param pattern           the triple patterns, which must all have the same variable as their subject
+     * @param objectConstraints queries that the triples binding a variable in the object position must also match
+     * @param execCxt           the execution context
+     */
+    QueryIterElasticsearchMergeJoin(QueryIterator input, ElasticsearchGraph graph, BasicPattern pattern,
+                                    Map<Var, QueryBuilder> objectConstraints, ExecutionContext execCxt) {
+        super(input, execCxt);
+        this.graph = graph;
+        this.pattern = pattern;
+        this.streams = new ArrayList<>(pattern.size());
+        for (Triple triple : pattern) {
+            Triple lookup = Triple.create(Node.ANY, lookupNode(triple.getPredicate()), lookupNode(triple.getObject()));
+            QueryBuilder objectConstraint = triple.getObject().isVariable() ? objectConstraints.get(Var.alloc(triple.getObject())) : null;
+            this.streams.add(graph.find(lookup, objectConstraint));
+        }
+        this.heads = new Triple[pattern.size()];
+        this.headSubjects = new String[pattern.size()];
+    }
+
+    private static Node lookupNode(Node n) {
+        return n.isVariable() ? Node.ANY : n;
+    }
+
+    /**
+     * Compares field values in the order Elasticsearch sorts keywords: by their UTF-8 bytes, which is code point order
+     */
+    static int compareStoredValues(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+    /**
+     * Moves the head of a stream to its next triple
+     *
+     * @return false if the stream is exhausted
+     */
+    private boolean advance(int k) {
+        if (!this.streams.get(k).hasNext()) {
+            this.heads[k] = null;
+            this.headSubjects[k] = null;
+            return false;
+        }
+        this.heads[k] = this.streams.get(k).next();
+        this.headSubjects[k] = this.graph.encodeLookup(this.heads[k].getSubject());
+        return true;
+    }
+
+    /**
+     * Advances the streams to the next subject that all of them match, and joins their matches for that subject
+     *
+     * @return false if a stream is exhausted
+     */
+    private boolean nextSubject() {
+        for (int k = 0; k < this.heads.length; ++k) {
+            if (this.heads[k] == null && !this.advance(k)) {
+                return false;
+            }
+        }
+
+        // skip ahead until every head has the greatest subject among the heads
+        String subject = this.headSubjects[0];
+        boolean aligned = false;
+        while (!aligned) {
+            aligned = true;
+            for (int k = 0; k < this.heads.length; ++k) {
+                int cmp;
+                while ((cmp = compareStoredValues(this.headSubjects[k], subject)) < 0) {
+                    if (this.cancelled || !this.advance(k)) {
+                        return false;
+                    }
+                }
+                if (cmp > 0) {
+                    subject = this.headSubjects[k];
+                    aligned = false;
+                }
+            }
+        }
+
+        // collect the matches of every pattern for the subject
+        List<List<Triple>> groups = new ArrayList<>(this.heads.length);
+        for (int k = 0; k < this.heads.length; ++k) {
+            List<Triple> group = new ArrayList<>();
+            do {
+                group.add(this.heads[k]);
+            } while (this.advance(k) && this.headSubjects[k].equals(subject));
+            groups.add(group);
+        }
+        this.output = this.join(groups).iterator();
+        return true;
+    }
+
+    /**
+     * Returns the bindings of every combination of matches that agree on the variables they share
+     */
+    private List<Binding> join(List<List<Triple>> groups) {
+        List<Binding> bindings = Collections.singletonList(BindingFactory.root());
+        for (int k = 0; k < groups.size(); ++k) {
+            Triple triple = this.pattern.get(k);
+            List<Binding> extended = new ArrayList<>();
+            for (Binding parent : bindings) {
+                for (Triple match : groups.get(k)) {
+                    BindingMap b = BindingFactory.create(parent);
+                    if (QueryIterElasticsearchPattern.insert(triple.getSubject(), match.getSubject(), b)
+                            && QueryIterElasticsearchPattern.insert(triple.getPredicate(), match.getPredicate(), b)
+                            && QueryIterElasticsearchPattern.insert(triple.getObject(), match.getObject(), b)) {
+                        extended.add(b);
+                    }
+                }
+            }
+            bindings = extended;
+        }
+        return bindings;
+    }
+
+    @Override
+    protected boolean hasNextBinding() {
+        while (!this.output.hasNext()) {
+            if (this.cancelled || this.exhausted) {
+                return false;
+            }
+            if (!this.nextSubject()) {
+                this.exhausted = true;
+                this.closeStreams();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected Binding moveToNextBinding() {
+        if (!this.hasNextBinding()) {
+            throw new IllegalStateException("No more bindings");
+        }
+        return this.output.next();
+    }
+
+    private void closeStreams() {
+        for (ExtendedIterator<Triple> stream : this.streams) {
+            NiceIterator.close(stream);
+        }
+    }
+
+    @Override
+    protected void requestSubCancel() {
+        this.cancelled = true;
+    }
+
+    @Override
+    protected void closeSubIterator() {
+        this.closeStreams();
+        this.output = Collections.emptyIterator();
+    }
+
+    @Override
+    protected void details(IndentedWriter out, SerializationContext sCxt) {
+        out.print("ElasticsearchMergeJoin ");
+        out.print(this.pattern.toString());
+    }
+}
@@ -0,0 +1,207 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.core.Substitute;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.engine.iterator.QueryIter1;
+import org.apache.jena.sparql.serializer.SerializationContext;
+import org.apache.jena.util.iterator.NiceIterator;
+import org.apache.jena.util.iterator.WrappedIterator;
+import org.elasticsearch.index.query.QueryBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Joins the bindings of its input with one triple pattern over an ElasticsearchGraph. Input
+ * bindings are read in batches, and the substituted patterns of a whole batch are looked up
+ * together with an ElasticsearchBatchFinder, so that one request serves many bindings.
+ * The output for a batch is produced lazily, binding by binding, in input order.
+ */
+class QueryIterElasticsearchPattern extends QueryIter1 {
+    private final ElasticsearchGraph graph;
+    private final Triple pattern;
+    private final int batchSize;
+    private final QueryBuilder objectConstraint;
+    private final ElasticsearchBatchFinder finder;
+
+    private List<Binding> batch = Collections.emptyList();
+    private int batchPosition = 0;
+    private Map<Triple, List<Triple>> batchMatches = Collections.emptyMap();
+    private Binding parent = null;
+    private Triple parentPattern = null;
+    private Iterator<Triple> matches = Collections.emptyIterator();
+    private Binding slot = null;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Constructor for QueryIterElasticsearchPattern
+     *
+     * @param input            the bindings to join with the pattern
+     * @param pattern          the triple pattern
+     * @param g                the graph to match the pattern in
+     * @param objectConstraint a query that the matching triples must also match, such as a FILTER on the
+     *                         variable in the object position translated by ElasticsearchFilterTranslator, or null
+     * @param execCxt          the execution context
+     */
+    QueryIterElasticsearchPattern(QueryIterator input, Triple pattern, ElasticsearchGraph g, QueryBuilder objectConstraint,
+                                  ExecutionContext execCxt) {
+        super(input, execCxt);
+        this.graph = g;
+        this.pattern = pattern;
+        this.batchSize = Math.max(1, g.getConfiguration().bindJoinBatchSize);
+        this.objectConstraint = objectConstraint;
+        this.finder = new ElasticsearchBatchFinder(g, objectConstraint);
+    }
+
+    /**
+     * Returns the pattern to look up in the graph for a substituted pattern: variables match anything
+     */
+    private static Triple lookupPattern(Triple substituted) {
+        return Triple.create(lookupNode(substituted.getSubject()), lookupNode(substituted.getPredicate()), lookupNode(substituted.getObject()));
+    }
+
+    private static Node lookupNode(Node n) {
+        return n.isVariable() ? Node.ANY : n;
+    }
+
+    /**
+     * Reads the next batch of input bindings and looks up their patterns
+     *
+     * @return false if the input is exhausted
+     */
+    private boolean nextBatch() {
+        List<Binding> bindings = new ArrayList<>(this.batchSize);
+        while (bindings.size() < this.batchSize && this.getInput().hasNext()) {
+            bindings.add(this.getInput().nextBinding());
+        }
+        if (bindings.isEmpty()) {
+            return false;
+        }
+
+        Set<Triple> lookups = new LinkedHashSet<>();
+        for (Binding b : bindings) {
+            lookups.add(lookupPattern(Substitute.substitute(this.pattern, b)));
+        }
+        this.batchMatches = this.finder.find(lookups);
+        this.batch = bindings;
+        this.batchPosition = 0;
+        return true;
+    }
+
+    /**
+     * Moves on to the matches of the next input binding
+     *
+     * @return false if the input is exhausted
+     */
+    private boolean nextParent() {
+        NiceIterator.close(this.matches);
+        if (this.batchPosition >= this.batch.size() && !this.nextBatch()) {
+            return false;
+        }
+        this.parent = this.batch.get(this.batchPosition++);
+        this.parentPattern = Substitute.substitute(this.pattern, this.parent);
+
+        Triple lookup = lookupPattern(this.parentPattern);
+        List<Triple> found = this.batchMatches.get(lookup);
+        // patterns with more than a page of matches are paged through on their own
+        this.matches = found != null ? this.graph.withSessionWrites(lookup, WrappedIterator.create(found.iterator()))
+                : this.graph.find(lookup, this.objectConstraint);
+        return true;
+    }
+
+    /**
+     * Extends the current input binding with a matching triple
+     *
+     * @return the extended binding, or null if a variable repeated in the pattern would be bound to two values
+     */
+    private Binding bind(Triple t) {
+        BindingMap result = BindingFactory.create(this.parent);
+        if (!insert(this.parentPattern.getSubject(), t.getSubject(), result)) {
+            return null;
+        }
+        if (!insert(this.parentPattern.getPredicate(), t.getPredicate(), result)) {
+            return null;
+        }
+        if (!insert(this.parentPattern.getObject(), t.getObject(), result)) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Binds the variable of a pattern position to a value
+     *
+     * @param patternNode the node in the pattern position
+     * @param value       the node of the matching triple in that position
+     * @param result      the binding to extend
+     * @return false if the variable is already bound to a different value
+     */
+    static boolean insert(Node patternNode, Node value, BindingMap result) {
+        if (!Var.isVar(patternNode)) {
+            return true;
+        }
+        Var v = Var.alloc(patternNode);
+        Node bound = result.get(v);
+        if (bound != null) {
+            return bound.equals(value);
+        }
+        result.add(v, value);
+        return true;
+    }
+
+    @Override
+    protected boolean hasNextBinding() {
+        while (this.slot == null) {
+            if (this.cancelled) {
+                return false;
+            }
+            if (this.matches.hasNext()) {
+                this.slot = this.bind(this.matches.next());
+            } else if (!this.nextParent()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected Binding moveToNextBinding() {
+        if (!this.hasNextBinding()) {
+            throw new IllegalStateException("No more bindings");
+        }
+        Binding result = this.slot;
+        this.slot = null;
+        return result;
+    }
+
+    @Override
+    protected void requestSubCancel() {
+        this.cancelled = true;
+    }
+
+    @Override
+    protected void closeSubIterator() {
+        NiceIterator.close(this.matches);
+        this.batch = Collections.emptyList();
+        this.batchMatches = Collections.emptyMap();
+    }
+
+    @Override
+    protected void details(IndentedWriter out, SerializationContext sCxt) {
+        out.print("ElasticsearchPattern ");
+        out.print(this.pattern.toString());
+    }
+}
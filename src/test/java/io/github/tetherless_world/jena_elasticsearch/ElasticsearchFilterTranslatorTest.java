@@ -0,0 +1,147 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.util.ExprUtils;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.PrefixQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.WildcardQueryBuilder;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticsearchFilterTranslatorTest {
+    private final static Var X = Var.alloc("x");
+
+    /**
+     * Returns the queries that a filter puts on the object bound to ?x, or null if it puts none
+     */
+    private static List<QueryBuilder> constraints(String filter) {
+        Map<Var, QueryBuilder> constraints = ElasticsearchFilterTranslator.objectConstraints(
+                new ExprList(ExprUtils.parse(filter)));
+        QueryBuilder query = constraints.get(X);
+        return query == null ? null : ((BoolQueryBuilder) query).filter();
+    }
+
+    private static RangeQueryBuilder range(String filter) {
+        List<QueryBuilder> queries = constraints(filter);
+        assertEquals(1, queries.size());
+        return (RangeQueryBuilder) queries.get(0);
+    }
+
+    @Test
+    public void testNumericComparisons() {
+        RangeQueryBuilder range = range("?x > 5");
+        assertEquals(ElasticsearchLiteralFields.DOUBLE, range.fieldName());
+        assertEquals(5.0, range.from());
+        assertNull(range.to());
+        // bounds are always inclusive, since doubles may round distinct values to the bound
+        assertTrue(range.includeLower());
+
+        range = range("?x <= 2.5");
+        assertNull(range.from());
+        assertEquals(2.5, range.to());
+
+        range = range("?x = 7");
+        assertEquals(7.0, range.from());
+        assertEquals(7.0, range.to());
+    }
+
+    @Test
+    public void testSwappedComparison() {
+        RangeQueryBuilder range = range("5 < ?x");
+        assertEquals(5.0, range.from());
+        assertNull(range.to());
+    }
+
+    @Test
+    public void testDateComparisonIsWidenedByTimezoneOffset() {
+        RangeQueryBuilder range = range("?x >= \"2020-01-01T00:00:00Z\"^^<http://www.w3.org/2001/XMLSchema#dateTime>");
+        assertEquals(ElasticsearchLiteralFields.DATE, range.fieldName());
+        assertEquals(1577836800000L - ElasticsearchLiteralFields.MAX_TIMEZONE_OFFSET_MILLIS, range.from());
+        assertNull(range.to());
+
+        range = range("?x = \"2020-01-01\"^^<http://www.w3.org/2001/XMLSchema#date>");
+        assertEquals(1577836800000L - ElasticsearchLiteralFields.MAX_TIMEZONE_OFFSET_MILLIS, range.from());
+        assertEquals(1577836800000L + ElasticsearchLiteralFields.MAX_TIMEZONE_OFFSET_MILLIS, range.to());
+    }
+
+    @Test
+    public void testConjunction() {
+        List<QueryBuilder> queries = constraints("?x > 1 && ?x < 10");
+        assertEquals(2, queries.size());
+    }
+
+    @Test
+    public void testUntranslatableComparisons() {
+        assertNull(constraints("?x > ?y"));
+        assertNull(constraints("?x > \"abc\""));
+        assertNull(constraints("?x != 5"));
+        assertNull(constraints("?x > 1 || ?x < 0"));
+    }
+
+    private static QueryBuilder lexical(String filter) {
+        List<QueryBuilder> queries = constraints(filter);
+        assertEquals(1, queries.size());
+        return queries.get(0);
+    }
+
+    @Test
+    public void testStringFunctions() {
+        WildcardQueryBuilder contains = (WildcardQueryBuilder) lexical("CONTAINS(?x, \"bc\")");
+        assertEquals(ElasticsearchLiteralFields.LEXICAL, contains.fieldName());
+        assertEquals("*bc*", contains.value());
+
+        PrefixQueryBuilder startsWith = (PrefixQueryBuilder) lexical("STRSTARTS(?x, \"ab\"@en)");
+        assertEquals(ElasticsearchLiteralFields.LEXICAL, startsWith.fieldName());
+        assertEquals("ab", startsWith.value());
+
+        WildcardQueryBuilder endsWith = (WildcardQueryBuilder) lexical("STRENDS(?x, \"yz\")");
+        assertEquals("*yz", endsWith.value());
+    }
+
+    @Test
+    public void testWildcardCharactersAreEscaped() {
+        WildcardQueryBuilder contains = (WildcardQueryBuilder) lexical("CONTAINS(?x, \"a*b?c\\\\d\")");
+        assertEquals("*a\\*b\\?c\\\\d*", contains.value());
+
+        // a prefix query has no special characters
+        PrefixQueryBuilder startsWith = (PrefixQueryBuilder) lexical("STRSTARTS(?x, \"a*\")");
+        assertEquals("a*", startsWith.value());
+    }
+
+    @Test
+    public void testLiteralRegex() {
+        WildcardQueryBuilder unanchored = (WildcardQueryBuilder) lexical("REGEX(?x, \"abc\")");
+        assertEquals("*abc*", unanchored.value());
+
+        PrefixQueryBuilder anchored = (PrefixQueryBuilder) lexical("REGEX(?x, \"^abc\")");
+        assertEquals("abc", anchored.value());
+
+        // $ also matches before a final line terminator, so only the start can be anchored
+        PrefixQueryBuilder both = (PrefixQueryBuilder) lexical("REGEX(?x, \"^abc$\")");
+        assertEquals("abc", both.value());
+
+        PrefixQueryBuilder caseInsensitive = (PrefixQueryBuilder) lexical("REGEX(?x, \"^AbC\", \"i\")");
+        assertEquals(ElasticsearchLiteralFields.LEXICAL_LOWERCASE, caseInsensitive.fieldName());
+        assertEquals("abc", caseInsensitive.value());
+    }
+
+    @Test
+    public void testRegexMetacharactersAreRefused() {
+        for (String pattern : new String[]{"a.c", "a|b", "ab?", "a*", "a+", "(a)", "[ab]", "a{2}", "a\\\\d", "^a$b"}) {
+            assertNull(pattern, constraints("REGEX(?x, \"" + pattern + "\")"));
+        }
+        // Java regular expressions only ignore the case of ASCII characters
+        assertNull(constraints("REGEX(?x, \"é\", \"i\")"));
+        assertNull(constraints("REGEX(?x, \"abc\", \"s\")"));
+        assertNull(constraints("REGEX(?x, ?y)"));
+    }
+}
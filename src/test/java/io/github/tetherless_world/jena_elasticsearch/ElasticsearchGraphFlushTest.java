@@ -0,0 +1,102 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.elasticsearch.action.DocWriteRequest;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticsearchGraphFlushTest {
+
+    /**
+     * A coordinator whose refreshes block until they are released
+     */
+    private static class BlockingCoordinator extends ElasticsearchRefreshCoordinator {
+        final CountDownLatch refreshing = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+
+        BlockingCoordinator() {
+            super(null, "test", 0);
+        }
+
+        @Override
+        boolean refresh() {
+            this.refreshing.countDown();
+            try {
+                this.released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns a synchronous bulk graph whose bulk writer sends nothing
+     */
+    private static ElasticsearchGraph createGraph(ElasticsearchRefreshCoordinator coordinator) {
+        ElasticsearchGraphMakerConfiguration config =
+                new ElasticsearchGraphMakerConfiguration(ElasticsearchGraphMakerConfiguration.SyncType.SYNCHRONOUS);
+        config.bulkIndexing = true;
+        config.bulkFlushIntervalMillis = 0;
+        config.patternCacheMaxBytes = 1024 * 1024;
+        return new ElasticsearchGraph(null, "test", config, coordinator) {
+            @Override
+            ElasticsearchBulkWriter createBulkWriter(ElasticsearchGraphMakerConfiguration config) {
+                return new ElasticsearchBulkWriter(null, "test", config, change -> {
+                }) {
+                    @Override
+                    void add(DocWriteRequest<?> request) {
+                    }
+
+                    @Override
+                    void flush() {
+                    }
+                };
+            }
+        };
+    }
+
+    private static Triple triple(String o) {
+        return Triple.create(NodeFactory.createURI("http://example.org/s"), NodeFactory.createURI("http://example.org/p"),
+                NodeFactory.createLiteral(o));
+    }
+
+    @Test
+    public void testWritesArePendingUntilTheRefreshCompletes() throws InterruptedException {
+        BlockingCoordinator coordinator = new BlockingCoordinator();
+        ElasticsearchGraph graph = createGraph(coordinator);
+        graph.add(triple("a"));
+        assertTrue(graph.hasPendingBulkWrites());
+
+        Thread flusher = new Thread(graph::flush);
+        flusher.start();
+        coordinator.refreshing.await();
+        // the bulk requests have completed, but a concurrent read must still neither skip the flush nor cache
+        assertTrue(graph.hasPendingBulkWrites());
+
+        coordinator.released.countDown();
+        flusher.join();
+        assertFalse(graph.hasPendingBulkWrites());
+    }
+
+    @Test
+    public void testWritesQueuedDuringFlushRemainPending() throws InterruptedException {
+        BlockingCoordinator coordinator = new BlockingCoordinator();
+        ElasticsearchGraph graph = createGraph(coordinator);
+        graph.add(triple("a"));
+
+        Thread flusher = new Thread(graph::flush);
+        flusher.start();
+        coordinator.refreshing.await();
+        graph.add(triple("b"));
+        coordinator.released.countDown();
+        flusher.join();
+        // the second triple was queued after the flush started
+        assertTrue(graph.hasPendingBulkWrites());
+    }
+}
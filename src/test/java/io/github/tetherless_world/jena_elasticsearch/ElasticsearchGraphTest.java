@@ -3,6 +3,8 @@ package io.github.tetherless_world.jena_elasticsearch;
 import junit.framework.TestSuite;
 import org.apache.http.HttpHost;
 import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.graph.test.AbstractTestGraph;
 
 import java.nio.charset.Charset;
@@ -19,13 +21,16 @@ public class ElasticsearchGraphTest extends AbstractTestGraph {
     }
 
     public Graph getGraph() {
+        return createGraph(new ElasticsearchGraphMakerConfiguration(
+                ElasticsearchGraphMakerConfiguration.SyncType.SYNCHRONOUS,
+                new HttpHost("elasticsearch", 9200, "http")
+        ));
+    }
+
+    private static Graph createGraph(ElasticsearchGraphMakerConfiguration config) {
         ElasticsearchGraphMaker graphMaker;
         try {
             // Initialize the GraphMaker
-            ElasticsearchGraphMakerConfiguration config = new ElasticsearchGraphMakerConfiguration(
-                    ElasticsearchGraphMakerConfiguration.SyncType.SYNCHRONOUS,
-                    new HttpHost("elasticsearch", 9200, "http")
-            );
             graphMaker = new ElasticsearchGraphMaker(config);
 
             // Generate a random name for a new graph (to avoid name collisions between sequent test runs)
@@ -41,4 +46,66 @@ public class ElasticsearchGraphTest extends AbstractTestGraph {
             return null;
         }
     }
+
+    private static ElasticsearchGraphMakerConfiguration configuration(ElasticsearchGraphMakerConfiguration.SyncType syncType) {
+        return new ElasticsearchGraphMakerConfiguration(syncType, new HttpHost("elasticsearch", 9200, "http"));
+    }
+
+    public void testSessionDeletePatternRemovesUnrefreshedAdds() {
+        Graph g = createGraph(configuration(ElasticsearchGraphMakerConfiguration.SyncType.SESSION));
+        Triple t = triple("s p o");
+        g.add(t);
+        g.add(triple("s q r"));
+        assertTrue(g.contains(t));
+
+        g.delete(Triple.create(t.getSubject(), Node.ANY, Node.ANY));
+        assertFalse(g.contains(t));
+        assertFalse(g.contains(t.getSubject(), Node.ANY, Node.ANY));
+        assertFalse(g.find(t.getSubject(), Node.ANY, Node.ANY).hasNext());
+    }
+
+    public void testSessionReadsOwnWrites() {
+        Graph g = createGraph(configuration(ElasticsearchGraphMakerConfiguration.SyncType.SESSION));
+        Triple t1 = triple("s p o1");
+        Triple t2 = triple("s p o2");
+        g.add(t1);
+        g.add(t2);
+        assertTrue(g.contains(t1));
+        assertTrue(g.contains(t1.getSubject(), t1.getPredicate(), Node.ANY));
+        assertEquals(2, g.find(t1.getSubject(), Node.ANY, Node.ANY).toList().size());
+
+        g.delete(t1);
+        assertFalse(g.contains(t1));
+        assertEquals(1, g.find(t1.getSubject(), Node.ANY, Node.ANY).toList().size());
+        g.delete(t2);
+        assertFalse(g.contains(t1.getSubject(), Node.ANY, Node.ANY));
+    }
+
+    public void testBulkSynchronousGraphFlushesBeforeRead() {
+        ElasticsearchGraphMakerConfiguration config = configuration(ElasticsearchGraphMakerConfiguration.SyncType.SYNCHRONOUS);
+        config.bulkIndexing = true;
+        config.bulkFlushIntervalMillis = -1;
+        Graph g = createGraph(config);
+        Triple t = triple("s p o");
+        g.add(t);
+        assertTrue(g.contains(t));
+        assertTrue(g.contains(t.getSubject(), Node.ANY, Node.ANY));
+
+        g.delete(t);
+        assertFalse(g.contains(t));
+        assertFalse(g.find(t.getSubject(), Node.ANY, Node.ANY).hasNext());
+    }
+
+    public void testBulkWritesAreVisibleAfterFlush() {
+        ElasticsearchGraphMakerConfiguration config = configuration(ElasticsearchGraphMakerConfiguration.SyncType.SYNCHRONOUS);
+        config.bulkIndexing = true;
+        config.bulkFlushIntervalMillis = -1;
+        ElasticsearchGraph g = (ElasticsearchGraph) createGraph(config);
+        assertFalse(g.getTransactionHandler().transactionsSupported());
+
+        g.add(triple("s p o"));
+        g.add(triple("s p o2"));
+        g.flush();
+        assertEquals(2, g.reconcileSize());
+    }
 }
@@ -0,0 +1,100 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class ElasticsearchLiteralFieldsTest {
+
+    private static void assertRoundTrip(Node n) {
+        assertEquals(n, ElasticsearchGraph.createNode(ElasticsearchGraph.getNodeContent(n)));
+    }
+
+    @Test
+    public void testStoredValuesRoundTrip() {
+        assertRoundTrip(NodeFactory.createLiteral("plain"));
+        assertRoundTrip(NodeFactory.createLiteral(""));
+        assertRoundTrip(NodeFactory.createLiteral("chat", "fr"));
+        assertRoundTrip(NodeFactory.createLiteral("with space", "en-GB"));
+        assertRoundTrip(NodeFactory.createLiteral("42", XSDDatatype.XSDinteger));
+        assertRoundTrip(NodeFactory.createLiteral("2020-01-01T12:00:00Z", XSDDatatype.XSDdateTime));
+        assertRoundTrip(NodeFactory.createLiteral("<not a datatype>", XSDDatatype.XSDstring));
+        assertRoundTrip(NodeFactory.createLiteral("x", NodeFactory.getType("http://example.org/unknown")));
+        assertRoundTrip(NodeFactory.createURI("http://example.org/s"));
+        assertRoundTrip(NodeFactory.createBlankNode("b0"));
+    }
+
+    @Test
+    public void testStoredValueFormats() {
+        assertEquals("L:\"plain", ElasticsearchGraph.getNodeContent(NodeFactory.createLiteral("plain")));
+        assertEquals("L:@fr chat", ElasticsearchGraph.getNodeContent(NodeFactory.createLiteral("chat", "fr")));
+        assertEquals("L:<" + XSDDatatype.XSDinteger.getURI() + ">42",
+                ElasticsearchGraph.getNodeContent(NodeFactory.createLiteral("42", XSDDatatype.XSDinteger)));
+    }
+
+    @Test
+    public void testLegacyStoredValues() {
+        // values stored before datatypes and language tags were encoded hold only the lexical form
+        assertEquals(NodeFactory.createLiteral("hello"), ElasticsearchGraph.createNode("L:hello"));
+        assertEquals(NodeFactory.createLiteral(""), ElasticsearchGraph.createNode("L:"));
+        assertEquals(NodeFactory.createLiteral("<unterminated"), ElasticsearchGraph.createNode("L:<unterminated"));
+        assertEquals(NodeFactory.createLiteral("@nospace"), ElasticsearchGraph.createNode("L:@nospace"));
+    }
+
+    @Test
+    public void testNumericFields() {
+        Map<String, Object> source = new HashMap<>();
+        ElasticsearchLiteralFields.addFields(NodeFactory.createLiteral("42", XSDDatatype.XSDinteger), source);
+        assertEquals("42", source.get(ElasticsearchLiteralFields.LEXICAL));
+        assertEquals(XSDDatatype.XSDinteger.getURI(), source.get(ElasticsearchLiteralFields.DATATYPE));
+        assertEquals(42.0, source.get(ElasticsearchLiteralFields.DOUBLE));
+        assertEquals(42L, source.get(ElasticsearchLiteralFields.LONG));
+        assertFalse(source.containsKey(ElasticsearchLiteralFields.LANG));
+
+        source.clear();
+        ElasticsearchLiteralFields.addFields(NodeFactory.createLiteral("1.5", XSDDatatype.XSDdecimal), source);
+        assertEquals(1.5, source.get(ElasticsearchLiteralFields.DOUBLE));
+        assertFalse(source.containsKey(ElasticsearchLiteralFields.LONG));
+
+        source.clear();
+        ElasticsearchLiteralFields.addFields(NodeFactory.createLiteral("99999999999999999999", XSDDatatype.XSDinteger), source);
+        assertFalse(source.containsKey(ElasticsearchLiteralFields.LONG));
+
+        assertNull(ElasticsearchLiteralFields.toDouble(NodeValue.makeNode(NodeFactory.createLiteral("NaN", XSDDatatype.XSDdouble))));
+    }
+
+    @Test
+    public void testLanguageFields() {
+        Map<String, Object> source = new HashMap<>();
+        ElasticsearchLiteralFields.addFields(NodeFactory.createLiteral("chat", "fr"), source);
+        assertEquals("chat", source.get(ElasticsearchLiteralFields.LEXICAL));
+        assertEquals("fr", source.get(ElasticsearchLiteralFields.LANG));
+        assertFalse(source.containsKey(ElasticsearchLiteralFields.DOUBLE));
+    }
+
+    @Test
+    public void testDateFields() {
+        assertEquals(Long.valueOf(1577836800000L), ElasticsearchLiteralFields.toEpochMillis(
+                NodeValue.makeNode(NodeFactory.createLiteral("2020-01-01", XSDDatatype.XSDdate))));
+        assertEquals(Long.valueOf(1577880000500L), ElasticsearchLiteralFields.toEpochMillis(
+                NodeValue.makeNode(NodeFactory.createLiteral("2020-01-01T12:00:00.5Z", XSDDatatype.XSDdateTime))));
+        // no timezone: read as UTC
+        assertEquals(Long.valueOf(1577880000000L), ElasticsearchLiteralFields.toEpochMillis(
+                NodeValue.makeNode(NodeFactory.createLiteral("2020-01-01T12:00:00", XSDDatatype.XSDdateTime))));
+        assertNull(ElasticsearchLiteralFields.toEpochMillis(NodeValue.makeString("2020-01-01")));
+    }
+
+    @Test
+    public void testLowercase() {
+        assertEquals("straße ǆ", ElasticsearchLiteralFields.lowercase("STRAßE ǅ"));
+    }
+}
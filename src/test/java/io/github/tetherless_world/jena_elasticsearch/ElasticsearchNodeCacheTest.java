@@ -0,0 +1,68 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ElasticsearchNodeCacheTest {
+
+    @Test
+    public void testRepeatedValueReturnsSameNode() {
+        ElasticsearchNodeCache cache = new ElasticsearchNodeCache(1024 * 1024);
+        String value = "L:<http://www.w3.org/2001/XMLSchema#integer>42";
+        Node n = cache.get(value);
+        assertEquals(NodeFactory.createLiteral("42", NodeFactory.getType("http://www.w3.org/2001/XMLSchema#integer")), n);
+        assertSame(n, cache.get(value));
+        assertSame(cache.get("http://example.org/p"), cache.get("http://example.org/p"));
+    }
+
+    @Test
+    public void testLongValuesAreNotCached() {
+        ElasticsearchNodeCache cache = new ElasticsearchNodeCache(1024 * 1024);
+        StringBuilder value = new StringBuilder("L:\"");
+        for (int i = 0; i < 2000; ++i) {
+            value.append('x');
+        }
+        Node n = cache.get(value.toString());
+        assertEquals(value.substring(3), n.getLiteralLexicalForm());
+        assertNotSame(n, cache.get(value.toString()));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedValuesAreEvicted() {
+        // room for about two short values per segment
+        ElasticsearchNodeCache cache = new ElasticsearchNodeCache(16 * 2 * 300);
+        String first = "http://example.org/first";
+        Node n = cache.get(first);
+        // fill every segment well past its size
+        for (int i = 0; i < 1000; ++i) {
+            cache.get("http://example.org/" + i);
+        }
+        Node again = cache.get(first);
+        assertEquals(n, again);
+        assertNotSame(n, again);
+    }
+
+    @Test
+    public void testRecentlyUsedValueIsKept() {
+        ElasticsearchNodeCache cache = new ElasticsearchNodeCache(16 * 2 * 300);
+        String kept = "http://example.org/kept";
+        Node n = cache.get(kept);
+        for (int i = 0; i < 1000; ++i) {
+            // touching the value keeps it the most recently used entry of its segment
+            assertSame(n, cache.get(kept));
+            cache.get("http://example.org/" + i);
+        }
+        assertSame(n, cache.get(kept));
+    }
+
+    @Test
+    public void testZeroSizeCachesNothing() {
+        ElasticsearchNodeCache cache = new ElasticsearchNodeCache(0);
+        assertNotSame(cache.get("http://example.org/p"), cache.get("http://example.org/p"));
+    }
+}
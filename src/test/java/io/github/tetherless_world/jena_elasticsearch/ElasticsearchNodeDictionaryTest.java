@@ -0,0 +1,160 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.elasticsearch.client.RequestOptions;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class ElasticsearchNodeDictionaryTest {
+    private final static Node A = NodeFactory.createURI("http://example.org/a");
+    private final static Node B = NodeFactory.createURI("http://example.org/b");
+    private final static Node C = NodeFactory.createLiteral("c", "en");
+
+    /**
+     * A dictionary whose node table is a map, counting the requests made to it
+     */
+    private static class InMemoryDictionary extends ElasticsearchNodeDictionary {
+        final Map<String, String> table = new HashMap<>();
+        int gets = 0;
+        int creates = 0;
+
+        InMemoryDictionary() {
+            super(null, RequestOptions.DEFAULT, "test", 1000);
+        }
+
+        @Override
+        List<String> get(List<String> someIds) {
+            ++this.gets;
+            List<String> values = new ArrayList<>();
+            for (String id : someIds) {
+                values.add(this.table.get(id));
+            }
+            return values;
+        }
+
+        @Override
+        List<Boolean> create(List<String> someIds, List<String> values) {
+            ++this.creates;
+            List<Boolean> created = new ArrayList<>();
+            for (int i = 0; i < someIds.size(); ++i) {
+                created.add(this.table.putIfAbsent(someIds.get(i), values.get(i)) == null);
+            }
+            return created;
+        }
+
+        String idOf(Node n) {
+            return Long.toUnsignedString(this.hash(ElasticsearchGraph.getNodeContent(n)), 36);
+        }
+    }
+
+    @Test
+    public void testIdIsHashOfStoredValue() {
+        InMemoryDictionary dictionary = new InMemoryDictionary();
+        String id = dictionary.encode(A);
+        assertEquals(dictionary.idOf(A), id);
+        assertEquals(ElasticsearchGraph.getNodeContent(A), dictionary.table.get(id));
+        assertEquals(1, dictionary.gets);
+        assertEquals(1, dictionary.creates);
+
+        // cached
+        assertEquals(id, dictionary.encode(A));
+        assertEquals(1, dictionary.gets);
+    }
+
+    @Test
+    public void testBatchIsEncodedWithOneRequestOfEachKind() {
+        InMemoryDictionary dictionary = new InMemoryDictionary();
+        Map<Node, String> ids = dictionary.encode(Arrays.asList(A, B, C, A));
+        assertEquals(3, ids.size());
+        assertEquals(3, dictionary.table.size());
+        assertEquals(1, dictionary.gets);
+        assertEquals(1, dictionary.creates);
+    }
+
+    @Test
+    public void testExistingNodesAreNotAddedAgain() {
+        InMemoryDictionary writer = new InMemoryDictionary();
+        writer.encode(Arrays.asList(A, B));
+
+        InMemoryDictionary reader = new InMemoryDictionary();
+        reader.table.putAll(writer.table);
+        assertEquals(writer.encode(A), reader.encode(A));
+        assertEquals(0, reader.creates);
+        assertEquals(2, reader.table.size());
+    }
+
+    @Test
+    public void testCollisionProbesNextId() {
+        InMemoryDictionary dictionary = new InMemoryDictionary();
+        long hash = dictionary.hash(ElasticsearchGraph.getNodeContent(A));
+        dictionary.table.put(dictionary.idOf(A), "http://example.org/other");
+
+        String id = dictionary.encode(A);
+        assertEquals(Long.toUnsignedString(hash + 1, 36), id);
+        assertEquals(2, dictionary.gets);
+
+        // found again by probing past the other node
+        InMemoryDictionary reader = new InMemoryDictionary();
+        reader.table.putAll(dictionary.table);
+        assertEquals(id, reader.lookup(A));
+        assertEquals(id, reader.encode(A));
+        assertEquals(0, reader.creates);
+    }
+
+    @Test
+    public void testCollisionWithinBatch() {
+        InMemoryDictionary dictionary = new InMemoryDictionary() {
+            @Override
+            long hash(String value) {
+                return 42;
+            }
+        };
+        Map<Node, String> ids = dictionary.encode(Arrays.asList(A, B, C));
+        assertEquals(3, dictionary.table.size());
+        assertNotEquals(ids.get(A), ids.get(B));
+        assertNotEquals(ids.get(B), ids.get(C));
+        assertNotEquals(ids.get(A), ids.get(C));
+        for (Node n : ids.keySet()) {
+            assertEquals(ElasticsearchGraph.getNodeContent(n), dictionary.table.get(ids.get(n)));
+            assertEquals(n, dictionary.decode(ids.get(n)));
+        }
+    }
+
+    @Test
+    public void testLookupDoesNotAddAndCachesAbsence() {
+        InMemoryDictionary dictionary = new InMemoryDictionary();
+        assertNull(dictionary.lookup(A));
+        assertNull(dictionary.lookup(A));
+        assertEquals(1, dictionary.gets);
+        assertEquals(0, dictionary.creates);
+        assertEquals(0, dictionary.table.size());
+
+        // adding the node ends its absence
+        String id = dictionary.encode(A);
+        assertEquals(id, dictionary.lookup(A));
+    }
+
+    @Test
+    public void testDecodeReadsTable() {
+        InMemoryDictionary writer = new InMemoryDictionary();
+        Map<Node, String> ids = writer.encode(Arrays.asList(A, B, C));
+
+        InMemoryDictionary reader = new InMemoryDictionary();
+        reader.table.putAll(writer.table);
+        reader.prefetch(ids.values());
+        assertEquals(1, reader.gets);
+        assertEquals(C, reader.decode(ids.get(C)));
+        assertEquals(A, reader.decode(ids.get(A)));
+        assertEquals(1, reader.gets);
+    }
+}
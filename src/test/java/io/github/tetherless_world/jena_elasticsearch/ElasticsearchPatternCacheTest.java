@@ -0,0 +1,182 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.WrappedIterator;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ElasticsearchPatternCacheTest {
+    private final static Node S = NodeFactory.createURI("http://example.org/s");
+    private final static Node S2 = NodeFactory.createURI("http://example.org/s2");
+    private final static Node P = NodeFactory.createURI("http://example.org/p");
+    private final static Node O = NodeFactory.createLiteral("o");
+    private final static Node O2 = NodeFactory.createLiteral("o2");
+
+    private static ElasticsearchPatternCache createCache() {
+        // writes are read-visible when they return, so there is no quiet window
+        return new ElasticsearchPatternCache(1024 * 1024, 100, -1);
+    }
+
+    private static void fill(ElasticsearchPatternCache cache, Triple pattern, Triple... results) {
+        ExtendedIterator<Triple> it = cache.fill(pattern, WrappedIterator.create(Arrays.asList(results).iterator()), true);
+        while (it.hasNext()) {
+            it.next();
+        }
+    }
+
+    @Test
+    public void testCompletelyConsumedResultsAreCached() {
+        ElasticsearchPatternCache cache = createCache();
+        Triple pattern = Triple.create(S, Node.ANY, Node.ANY);
+        assertNull(cache.get(pattern));
+        fill(cache, pattern, Triple.create(S, P, O), Triple.create(S, P, O2));
+        assertEquals(Arrays.asList(Triple.create(S, P, O), Triple.create(S, P, O2)), cache.get(pattern));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testPartiallyConsumedResultsAreNotCached() {
+        ElasticsearchPatternCache cache = createCache();
+        Triple pattern = Triple.create(S, Node.ANY, Node.ANY);
+        ExtendedIterator<Triple> it = cache.fill(pattern,
+                WrappedIterator.create(Arrays.asList(Triple.create(S, P, O), Triple.create(S, P, O2)).iterator()), true);
+        it.next();
+        it.close();
+        assertNull(cache.get(pattern));
+    }
+
+    @Test
+    public void testUncacheableAndLargeResultsAreNotCached() {
+        ElasticsearchPatternCache cache = createCache();
+        Triple pattern = Triple.create(S, Node.ANY, Node.ANY);
+        ExtendedIterator<Triple> it = cache.fill(pattern, WrappedIterator.create(Arrays.asList(Triple.create(S, P, O)).iterator()), false);
+        while (it.hasNext()) {
+            it.next();
+        }
+        assertNull(cache.get(pattern));
+
+        cache = new ElasticsearchPatternCache(1024 * 1024, 1, -1);
+        fill(cache, pattern, Triple.create(S, P, O), Triple.create(S, P, O2));
+        assertNull(cache.get(pattern));
+    }
+
+    @Test
+    public void testWriteInvalidatesMatchingPatterns() {
+        ElasticsearchPatternCache cache = createCache();
+        Triple bySubject = Triple.create(S, Node.ANY, Node.ANY);
+        Triple byObject = Triple.create(Node.ANY, P, O2);
+        Triple otherSubject = Triple.create(S2, Node.ANY, Node.ANY);
+        Triple otherObject = Triple.create(Node.ANY, P, O);
+        fill(cache, bySubject, Triple.create(S, P, O));
+        fill(cache, byObject);
+        fill(cache, otherSubject);
+        fill(cache, otherObject, Triple.create(S, P, O));
+
+        cache.invalidate(Triple.create(S, P, O2));
+        assertNull(cache.get(bySubject));
+        assertNull(cache.get(byObject));
+        assertNotNull(cache.get(otherSubject));
+        assertNotNull(cache.get(otherObject));
+        assertEquals(2, cache.getInvalidationCount());
+    }
+
+    @Test
+    public void testDeletedPatternInvalidatesOverlappingPatterns() {
+        ElasticsearchPatternCache cache = createCache();
+        Triple bySubject = Triple.create(S, Node.ANY, Node.ANY);
+        Triple byObject = Triple.create(Node.ANY, Node.ANY, O);
+        Triple otherSubject = Triple.create(S2, P, O2);
+        fill(cache, bySubject, Triple.create(S, P, O));
+        fill(cache, byObject, Triple.create(S, P, O));
+        fill(cache, otherSubject);
+
+        cache.invalidatePattern(Triple.create(S, P, Node.ANY));
+        assertNull(cache.get(bySubject));
+        // may hold (S, P, O)
+        assertNull(cache.get(byObject));
+        assertNotNull(cache.get(otherSubject));
+    }
+
+    @Test
+    public void testWriteDuringSearchPreventsCaching() {
+        ElasticsearchPatternCache cache = createCache();
+        Triple pattern = Triple.create(S, Node.ANY, Node.ANY);
+        ExtendedIterator<Triple> it = cache.fill(pattern, WrappedIterator.create(Arrays.asList(Triple.create(S, P, O)).iterator()), true);
+        it.next();
+        // the search may or may not have seen the write, even if the written triple does not match the pattern
+        cache.invalidate(Triple.create(S2, P, O));
+        while (it.hasNext()) {
+            it.next();
+        }
+        assertNull(cache.get(pattern));
+
+        fill(cache, pattern, Triple.create(S, P, O));
+        assertNotNull(cache.get(pattern));
+    }
+
+    @Test
+    public void testInvalidateAllRemovesEveryPattern() {
+        // the caches of an asynchronous and a synchronous graph
+        ElasticsearchPatternCache cache = new ElasticsearchPatternCache(1024 * 1024, 100, 0);
+        ElasticsearchPatternCache synchronous = createCache();
+        Triple pattern = Triple.create(S, Node.ANY, Node.ANY);
+        fill(cache, pattern, Triple.create(S, P, O));
+        fill(synchronous, pattern, Triple.create(S, P, O));
+        assertNotNull(cache.get(pattern));
+
+        cache.invalidateAll();
+        synchronous.invalidateAll();
+        assertNull(cache.get(pattern));
+        assertNull(synchronous.get(pattern));
+        assertEquals(0, cache.getSizeInBytes());
+
+        // loaded triples may take a refresh interval to become visible
+        fill(cache, pattern, Triple.create(S, P, O));
+        assertNull(cache.get(pattern));
+    }
+
+    @Test
+    public void testNoCachingInQuietWindowAfterWrite() {
+        // an asynchronous graph: writes may take a refresh interval to become visible
+        ElasticsearchPatternCache cache = new ElasticsearchPatternCache(1024 * 1024, 100, 0);
+        Triple pattern = Triple.create(S, Node.ANY, Node.ANY);
+        cache.invalidate(Triple.create(S2, P, O));
+        fill(cache, pattern, Triple.create(S, P, O));
+        assertNull(cache.get(pattern));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedPatternsAreEvicted() {
+        Triple first = Triple.create(S, Node.ANY, Node.ANY);
+        Triple second = Triple.create(S2, Node.ANY, Node.ANY);
+        Triple third = Triple.create(Node.ANY, P, Node.ANY);
+        List<Triple> results = Arrays.asList(Triple.create(S, P, O));
+
+        ElasticsearchPatternCache probe = createCache();
+        fill(probe, first, results.get(0));
+        long entrySize = probe.getSizeInBytes();
+
+        ElasticsearchPatternCache cache = new ElasticsearchPatternCache(2 * entrySize, 100, -1);
+        fill(cache, first, results.get(0));
+        fill(cache, second, results.get(0));
+        // makes second the least recently used
+        assertNotNull(cache.get(first));
+        fill(cache, third, results.get(0));
+
+        assertNotNull(cache.get(first));
+        assertNull(cache.get(second));
+        assertNotNull(cache.get(third));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2 * entrySize, cache.getSizeInBytes());
+    }
+}
@@ -0,0 +1,103 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticsearchRefreshCoordinatorTest {
+
+    /**
+     * A coordinator whose refreshes take a few milliseconds and record when they started, on a clock shared with
+     * the writers
+     */
+    private static class RecordingCoordinator extends ElasticsearchRefreshCoordinator {
+        final AtomicLong clock = new AtomicLong();
+        final AtomicInteger refreshes = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        volatile long lastCompletedStart = 0;
+        volatile boolean overlapped = false;
+        volatile boolean fail = false;
+
+        RecordingCoordinator(long coalesceMillis) {
+            super(null, "test", coalesceMillis);
+        }
+
+        @Override
+        boolean refresh() {
+            if (this.running.incrementAndGet() > 1) {
+                this.overlapped = true;
+            }
+            long start = this.clock.incrementAndGet();
+            this.refreshes.incrementAndGet();
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.lastCompletedStart = start;
+            this.running.decrementAndGet();
+            return !this.fail;
+        }
+    }
+
+    @Test
+    public void testSingleWriter() {
+        RecordingCoordinator coordinator = new RecordingCoordinator(0);
+        assertTrue(coordinator.awaitRefresh());
+        assertTrue(coordinator.awaitRefresh());
+        assertEquals(2, coordinator.refreshes.get());
+    }
+
+    @Test
+    public void testFailedRefresh() {
+        RecordingCoordinator coordinator = new RecordingCoordinator(0);
+        coordinator.fail = true;
+        assertFalse(coordinator.awaitRefresh());
+        coordinator.fail = false;
+        assertTrue(coordinator.awaitRefresh());
+    }
+
+    @Test
+    public void testConcurrentWritersShareRefreshes() throws InterruptedException {
+        final int writers = 20;
+        final int writesPerWriter = 50;
+        final RecordingCoordinator coordinator = new RecordingCoordinator(5);
+        final AtomicInteger violations = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writers; ++i) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < writesPerWriter; ++j) {
+                    // the write completes here
+                    long writtenAt = coordinator.clock.incrementAndGet();
+                    if (!coordinator.awaitRefresh()) {
+                        failures.incrementAndGet();
+                    }
+                    // a refresh that started after the write has completed
+                    if (coordinator.lastCompletedStart <= writtenAt) {
+                        violations.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertEquals(0, violations.get());
+        assertFalse(coordinator.overlapped);
+        assertTrue("expected refreshes to be shared, got " + coordinator.refreshes.get(),
+                coordinator.refreshes.get() < writers * writesPerWriter / 2);
+    }
+}
@@ -0,0 +1,116 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Triple;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticsearchSessionDeltaTest {
+    private final static Node S = NodeFactory.createURI("http://example.org/s");
+    private final static Node P = NodeFactory.createURI("http://example.org/p");
+    private final static Triple T1 = Triple.create(S, P, NodeFactory.createLiteral("1"));
+    private final static Triple T2 = Triple.create(S, P, NodeFactory.createLiteral("2"));
+    private final static Triple OTHER = Triple.create(NodeFactory.createURI("http://example.org/other"), P, S);
+
+    @Test
+    public void testLastWriteOfTripleWins() {
+        ElasticsearchSessionDelta delta = new ElasticsearchSessionDelta();
+        assertTrue(delta.isEmpty());
+        assertNull(delta.contains(T1));
+
+        delta.add(T1);
+        assertEquals(Boolean.TRUE, delta.contains(T1));
+        delta.delete(T1);
+        assertEquals(Boolean.FALSE, delta.contains(T1));
+        delta.add(T1);
+        assertEquals(Boolean.TRUE, delta.contains(T1));
+        assertEquals(1, delta.size());
+        assertEquals(3, delta.getSequence());
+    }
+
+    @Test
+    public void testMatching() {
+        ElasticsearchSessionDelta delta = new ElasticsearchSessionDelta();
+        delta.add(T1);
+        delta.delete(T2);
+        delta.add(OTHER);
+
+        Map<Triple, Boolean> matching = delta.matching(Triple.create(S, Node.ANY, Node.ANY));
+        assertEquals(2, matching.size());
+        assertEquals(Boolean.TRUE, matching.get(T1));
+        assertEquals(Boolean.FALSE, matching.get(T2));
+
+        assertEquals(3, delta.matching(Triple.create(Node.ANY, P, Node.ANY)).size());
+        assertTrue(delta.matching(Triple.create(Node.ANY, S, Node.ANY)).isEmpty());
+    }
+
+    @Test
+    public void testPruneDropsWritesUpToSequence() {
+        ElasticsearchSessionDelta delta = new ElasticsearchSessionDelta();
+        delta.add(T1);
+        delta.add(T2);
+        long refreshed = delta.getSequence();
+        // written while the refresh was running, so it may not be visible yet
+        delta.delete(OTHER);
+
+        delta.prune(refreshed);
+        assertNull(delta.contains(T1));
+        assertNull(delta.contains(T2));
+        assertEquals(Boolean.FALSE, delta.contains(OTHER));
+        assertEquals(1, delta.size());
+    }
+
+    @Test
+    public void testRewriteAfterSequenceSurvivesPrune() {
+        ElasticsearchSessionDelta delta = new ElasticsearchSessionDelta();
+        delta.add(T1);
+        long refreshed = delta.getSequence();
+        delta.delete(T1);
+
+        delta.prune(refreshed);
+        assertEquals(Boolean.FALSE, delta.contains(T1));
+
+        delta.prune(delta.getSequence());
+        assertNull(delta.contains(T1));
+        assertTrue(delta.isEmpty());
+    }
+
+    @Test
+    public void testMatchingComparesLiteralsByTerm() {
+        ElasticsearchSessionDelta delta = new ElasticsearchSessionDelta();
+        Triple integer = Triple.create(S, P, NodeFactory.createLiteral("1", XSDDatatype.XSDinteger));
+        Triple padded = Triple.create(S, P, NodeFactory.createLiteral("01", XSDDatatype.XSDinteger));
+        delta.add(integer);
+
+        // the literals have the same value, but Elasticsearch stores and matches them as different terms
+        assertTrue(delta.matching(Triple.create(Node.ANY, Node.ANY, padded.getObject())).isEmpty());
+        assertTrue(delta.matching(padded).isEmpty());
+        assertEquals(1, delta.matching(Triple.create(Node.ANY, Node.ANY, integer.getObject())).size());
+    }
+
+    @Test
+    public void testMatchingAfterPrune() {
+        ElasticsearchSessionDelta delta = new ElasticsearchSessionDelta();
+        delta.add(T1);
+        delta.add(OTHER);
+        long refreshed = delta.getSequence();
+        delta.add(T2);
+
+        delta.prune(refreshed);
+        Map<Triple, Boolean> matching = delta.matching(Triple.create(Node.ANY, P, Node.ANY));
+        assertEquals(1, matching.size());
+        assertEquals(Boolean.TRUE, matching.get(T2));
+        assertTrue(delta.matching(Triple.create(OTHER.getSubject(), Node.ANY, Node.ANY)).isEmpty());
+        assertTrue(delta.matching(Triple.create(Node.ANY, Node.ANY, S)).isEmpty());
+
+        delta.add(OTHER);
+        assertEquals(1, delta.matching(Triple.create(Node.ANY, Node.ANY, S)).size());
+    }
+}
@@ -0,0 +1,162 @@
+package io.github.tetherless_world.jena_elasticsearch;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures the time and memory allocated per hit to parse a page of search results and decode its
+ * triples: from the source parsed into a map, as before, from the source read with a streaming
+ * parser, and from the sort values of a search without source, as ElasticsearchTripleIterator does.
+ * Runs without Elasticsearch, on a synthetic page of BSBM-like triples. It is not a test; run it with
+ * <p>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/test-classpath.txt -Dmdep.includeScope=test
+ * <p>
+ * java -cp target/classes:target/test-classes:$(cat target/test-classpath.txt)
+ * io.github.tetherless_world.jena_elasticsearch.HitDecodingBenchmark
+ */
+public class HitDecodingBenchmark {
+    private final static int PAGE_SIZE = 10000;
+    private final static int ROUNDS = 50;
+
+    private interface Decoder {
+        long decode(byte[] response) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        ElasticsearchGraphMakerConfiguration config = new ElasticsearchGraphMakerConfiguration(
+                ElasticsearchGraphMakerConfiguration.SyncType.ASYNCHRONOUS);
+        config.nodeCacheMaxBytes = 0;
+        final ElasticsearchGraph graph = new ElasticsearchGraph(null, "benchmark", config);
+
+        byte[] withSource = createResponse(graph, true);
+        byte[] withoutSource = createResponse(graph, false);
+
+        run("source map", withSource, response -> {
+            long n = 0;
+            for (SearchHit hit : parse(response)) {
+                Map<String, Object> fields = hit.getSourceAsMap();
+                n += Triple.create(ElasticsearchGraph.createNode((String) fields.get("subject")),
+                        ElasticsearchGraph.createNode((String) fields.get("predicate")),
+                        ElasticsearchGraph.createNode((String) fields.get("object"))).hashCode();
+            }
+            return n;
+        });
+        run("source stream", withSource, response -> {
+            long n = 0;
+            for (SearchHit hit : parse(response)) {
+                n += graph.createTriple(hit).hashCode();
+            }
+            return n;
+        });
+        run("sort values", withoutSource, response -> {
+            long n = 0;
+            for (SearchHit hit : parse(response)) {
+                n += graph.createTriple(hit).hashCode();
+            }
+            return n;
+        });
+    }
+
+    private static void run(String name, byte[] response, Decoder decoder) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long check = 0;
+        // warm up
+        for (int i = 0; i < ROUNDS; ++i) {
+            check += decoder.decode(response);
+        }
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; ++i) {
+            check += decoder.decode(response);
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        long hits = (long) ROUNDS * PAGE_SIZE;
+        System.out.printf("%-14s %8d bytes/page %6d bytes/hit %6d ns/hit (%d)%n", name, response.length,
+                allocated / hits, nanos / hits, check);
+    }
+
+    private static SearchHit[] parse(byte[] response) throws IOException {
+        try (XContentParser parser = JsonXContent.jsonXContent.createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, response)) {
+            return SearchResponse.fromXContent(parser).getHits().getHits();
+        }
+    }
+
+    /**
+     * Returns a search response with a page of product triples: a type, a label, a numeric property, and a feature
+     */
+    private static byte[] createResponse(ElasticsearchGraph graph, boolean source) throws IOException {
+        String vocabulary = "http://www4.wiwiss.fu-berlin.de/bizer/bsbm/v01/vocabulary/";
+        String instances = "http://www4.wiwiss.fu-berlin.de/bizer/bsbm/v01/instances/";
+
+        XContentBuilder builder = JsonXContent.contentBuilder();
+        builder.startObject();
+        builder.field("took", 1).field("timed_out", false);
+        builder.startObject("_shards").field("total", 1).field("successful", 1).field("skipped", 0).field("failed", 0).endObject();
+        builder.startObject("hits").field("max_score", (Float) null).startArray("hits");
+        for (int i = 0; i < PAGE_SIZE; ++i) {
+            Node s = NodeFactory.createURI(instances + "dataFromProducer" + (i / 400) + "/Product" + (i / 4));
+            Node p;
+            Node o;
+            switch (i % 4) {
+                case 0:
+                    p = NodeFactory.createURI("http://www.w3.org/1999/02/22-rdf-syntax-ns#type");
+                    o = NodeFactory.createURI(vocabulary + "ProductType" + (i % 50));
+                    break;
+                case 1:
+                    p = NodeFactory.createURI("http://www.w3.org/2000/01/rdf-schema#label");
+                    o = NodeFactory.createLiteral("unbutton sublimest reformer " + i);
+                    break;
+                case 2:
+                    p = NodeFactory.createURI(vocabulary + "productPropertyNumeric1");
+                    o = NodeFactory.createLiteral(Integer.toString(i % 2000), XSDDatatype.XSDinteger);
+                    break;
+                default:
+                    p = NodeFactory.createURI(vocabulary + "productFeature");
+                    o = NodeFactory.createURI(instances + "ProductFeature" + (i % 1000));
+                    break;
+            }
+            Triple t = Triple.create(s, p, o);
+            Map<String, Object> document = graph.createIndexRequest(t).sourceAsMap();
+
+            builder.startObject();
+            builder.field("_index", "benchmark").field("_type", "_doc").field("_id", ElasticsearchGraph.getDocumentId(t));
+            builder.field("_score", (Float) null);
+            if (source) {
+                // in the order the document was indexed in
+                Map<String, Object> ordered = new LinkedHashMap<>();
+                ordered.put("subject", document.get("subject"));
+                ordered.put("predicate", document.get("predicate"));
+                ordered.put("object", document.get("object"));
+                Map<String, Object> rest = new HashMap<>(document);
+                rest.keySet().removeAll(ordered.keySet());
+                ordered.putAll(rest);
+                builder.field("_source", ordered);
+            }
+            builder.array("sort", document.get("subject"), document.get("predicate"), document.get("object"));
+            builder.endObject();
+        }
+        builder.endArray().endObject();
+        builder.endObject();
+        return BytesReference.toBytes(BytesReference.bytes(builder));
+    }
+}